@@ -1,9 +1,7 @@
 package headwater.examples;
 
 import headwater.Utils;
-import headwater.bitmap.BitmapFactory;
-import headwater.bitmap.IBitmap;
-import headwater.bitmap.MemoryBitmap2;
+import headwater.bitmap.RoaringBitmap;
 import headwater.hashing.BitHashableKey;
 import headwater.hashing.FunnelHasher;
 import headwater.hashing.Hashers;
@@ -74,7 +72,8 @@ public class Shakespeare {
 
     public static void queryIndex(String args[]) {
         try {
-            CassandraBitmapIO cassandra = new CassandraBitmapIO("127.0.0.1", 9160, "shakespeare", "shakespeare_bitmaps");
+            CassandraBitmapIO cassandra = new CassandraBitmapIO("127.0.0.1", 9160, "shakespeare", "shakespeare_bitmaps")
+                    .withBitmapWrapper(RoaringBitmap.WRAPPER);
             final Map<Long, String> bitToKey = new HashMap<Long, String>();
             final List<ToIndex> lines = readShakespeareFiles();
             final Map<String, String> linesMap = new HashMap<String, String>();
@@ -144,12 +143,9 @@ public class Shakespeare {
             final Map<Long, String> bitToKey = new HashMap<Long, String>();
             
             // we're going to need a cassandra IO to flush to.
-            CassandraBitmapIO cassandra = new CassandraBitmapIO("127.0.0.1", 9160, "shakespeare", "shakespeare_bitmaps");
-            MemoryBitmapIO memory = new MemoryBitmapIO().withBitmapFactory(new BitmapFactory() {
-                public IBitmap make() {
-                    return new MemoryBitmap2(SEGMENT_SIZE);
-                }
-            });
+            CassandraBitmapIO cassandra = new CassandraBitmapIO("127.0.0.1", 9160, "shakespeare", "shakespeare_bitmaps")
+                    .withBitmapWrapper(RoaringBitmap.WRAPPER);
+            MemoryBitmapIO memory = new MemoryBitmapIO().withBitmapFactory(RoaringBitmap.factory(SEGMENT_SIZE));
     
             // read the lines into memory before indexing them.
             System.out.println("Reading in files");
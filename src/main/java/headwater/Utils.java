@@ -3,9 +3,7 @@ package headwater;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -88,17 +86,52 @@ public class Utils {
     }
     
     public static long[] getAsserted(byte[] buf) {
-        final List<Long> asserted = new ArrayList<Long>();
-        long bitIndex = 0;
-        for (byte b : buf) {
-            for (int i = 0; i < 8; i++) {
-                if ((b & 0x01) == 0x01)
-                    asserted.add(bitIndex + i);
-                b >>>= 1;
+        long[] asserted = new long[(int)cardinality(buf)];
+        int pos = 0;
+        int words = (buf.length + 7) >>> 3;
+        for (int w = 0; w < words; w++) {
+            long word = littleEndianWord(buf, w);
+            while (word != 0) {
+                asserted[pos++] = ((long)w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
             }
-            bitIndex += 8;
         }
-        return Utils.unbox(asserted.toArray(new Long[asserted.size()]));
+        return asserted;
+    }
+    
+    public static long cardinality(byte[] buf) {
+        long count = 0;
+        for (byte b : buf)
+            count += Integer.bitCount(b & 0xff);
+        return count;
+    }
+    
+    /** the first asserted bit at or after fromBit, or -1. */
+    public static long nextSetBit(byte[] buf, long fromBit) {
+        if (fromBit < 0)
+            fromBit = 0;
+        int words = (buf.length + 7) >>> 3;
+        int w = (int)(fromBit >>> 6);
+        if (w >= words)
+            return -1;
+        long word = littleEndianWord(buf, w) & (-1L << fromBit);
+        while (true) {
+            if (word != 0)
+                return ((long)w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words)
+                return -1;
+            word = littleEndianWord(buf, w);
+        }
+    }
+    
+    /** 64 bits of a little-endian bit buffer (bit 0 is the low bit of buf[0]), zero padded past the end. */
+    public static long littleEndianWord(byte[] buf, int w) {
+        int start = w << 3;
+        int end = Math.min(buf.length, start + 8);
+        long word = 0;
+        for (int i = end - 1; i >= start; i--)
+            word = (word << 8) | (buf[i] & 0xffL);
+        return word;
     }
     
     private static final Random rand = new Random(System.currentTimeMillis());
@@ -0,0 +1,5 @@
+package headwater.bitmap;
+
+public interface BitObserver {
+    public void observe(long bit);
+}
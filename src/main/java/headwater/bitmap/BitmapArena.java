@@ -0,0 +1,66 @@
+package headwater.bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out fixed size segment bitmaps as slices of large direct ByteBuffer slabs, so ingest buffers live off-heap and
+ * the garbage collector never sees them. Slabs are kept after reset() and reused by the next round of make() calls.
+ */
+public class BitmapArena implements BitmapFactory {
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private final int segmentBytes;
+    private final int segmentsPerSlab;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private int slab = 0;
+    private int segmentInSlab = 0;
+
+    public BitmapArena(int segmentBitLength) {
+        this(segmentBitLength, DEFAULT_SLAB_SIZE);
+    }
+
+    public BitmapArena(int segmentBitLength, int slabSize) {
+        if (segmentBitLength % 8 != 0)
+            throw new IllegalArgumentException("segmentBitLength must be evenly divisible by 8");
+        if (slabSize < segmentBitLength / 8)
+            throw new IllegalArgumentException("slabSize must hold at least one segment");
+        this.segmentBytes = segmentBitLength / 8;
+        this.segmentsPerSlab = slabSize / segmentBytes;
+    }
+
+    /** an empty segment. It is only valid until the next reset(). */
+    public synchronized IBitmap make() {
+        if (segmentInSlab == segmentsPerSlab) {
+            slab += 1;
+            segmentInSlab = 0;
+        }
+        if (slab == slabs.size())
+            slabs.add(ByteBuffer.allocateDirect(segmentsPerSlab * segmentBytes));
+        IBitmap bitmap = new ByteBufferBitmap(slabs.get(slab), segmentInSlab * segmentBytes, segmentBytes);
+        segmentInSlab += 1;
+
+        // slabs are reused after a reset, so we can't count on them being zeroed.
+        bitmap.clear();
+        return bitmap;
+    }
+
+    /**
+     * Recycles every segment handed out so far. Any bitmap still referenced from before the reset will see (and
+     * scribble on) the bits of whatever segment is made from its slice next, so drop them all first.
+     */
+    public synchronized void reset() {
+        slab = 0;
+        segmentInSlab = 0;
+    }
+
+    /** direct memory held by the arena, whether it is in use or not. */
+    public synchronized long getAllocatedBytes() {
+        return (long)slabs.size() * segmentsPerSlab * segmentBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return ((long)slab * segmentsPerSlab + segmentInSlab) * segmentBytes;
+    }
+}
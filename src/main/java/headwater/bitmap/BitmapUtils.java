@@ -1,11 +1,9 @@
 package headwater.bitmap;
 
-// todo: if IBitmap supports simple bitwise operations, use those.
 public class BitmapUtils {
     public static void mutatingAnd(IBitmap receiver, IBitmap giver) {
-        if (giver.getBitLength() != receiver.getBitLength()) throw new IllegalArgumentException("Bitset lengths are not identical");
-        for (long i : receiver.getAsserted())
-            receiver.set(i, giver.get(i));
+        assertSameLength(receiver, giver);
+        receiver.and(giver);
     }
 
     public static IBitmap nonMutatingAND(IBitmap a, IBitmap b) {
@@ -19,9 +17,8 @@ public class BitmapUtils {
     }
 
     public static void mutatingOR(IBitmap receiver, IBitmap giver) {
-        if (giver.getBitLength() != receiver.getBitLength()) throw new IllegalArgumentException("Bitset lengths are not identical");
-        for (long i : giver.getAsserted())
-            receiver.set(i, true);
+        assertSameLength(receiver, giver);
+        receiver.or(giver);
     }
 
     public static IBitmap nonMutatingOR(IBitmap a, IBitmap b) {
@@ -33,4 +30,32 @@ public class BitmapUtils {
             throw new RuntimeException(ex);
         }
     }
+    
+    public static void assertSameLength(IBitmap a, IBitmap b) {
+        if (a.getBitLength() != b.getBitLength()) throw new IllegalArgumentException("Bitset lengths are not identical");
+    }
+    
+    // bit-at-a-time versions of the bitwise operations. Implementations fall back to these when they do not know how
+    // to get at the words of the other bitmap.
+    
+    static void andBitByBit(IBitmap receiver, IBitmap giver) {
+        for (long i = receiver.nextSetBit(0); i >= 0; i = receiver.nextSetBit(i + 1))
+            if (!giver.get(i))
+                receiver.set(i, false);
+    }
+    
+    static void orBitByBit(IBitmap receiver, IBitmap giver) {
+        for (long i = giver.nextSetBit(0); i >= 0; i = giver.nextSetBit(i + 1))
+            receiver.set(i, true);
+    }
+    
+    static void andNotBitByBit(IBitmap receiver, IBitmap giver) {
+        for (long i = giver.nextSetBit(0); i >= 0; i = giver.nextSetBit(i + 1))
+            receiver.set(i, false);
+    }
+    
+    static void xorBitByBit(IBitmap receiver, IBitmap giver) {
+        for (long i = giver.nextSetBit(0); i >= 0; i = giver.nextSetBit(i + 1))
+            receiver.set(i, !receiver.get(i));
+    }
 }
@@ -0,0 +1,6 @@
+package headwater.bitmap;
+
+/** turns the output of IBitmap.toBytes() back into a bitmap. */
+public interface BitmapWrapper {
+    public IBitmap wrap(byte[] buf);
+}
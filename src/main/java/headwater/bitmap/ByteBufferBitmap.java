@@ -0,0 +1,232 @@
+package headwater.bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A bitmap that is a view over a region of a (usually direct) ByteBuffer. The region uses the same little-endian layout
+ * as MemoryBitmap2, so the words can be read with ByteBuffer.getLong(). Nothing is copied: writes go straight to the
+ * buffer, and another view over the same region will see them.
+ */
+public class ByteBufferBitmap implements IBitmap {
+    private final ByteBuffer buf;
+    private final int offset;
+    private final int numBytes;
+
+    public ByteBufferBitmap(ByteBuffer buf, int offset, int numBytes) {
+        if (offset < 0 || numBytes < 0 || offset + numBytes > buf.capacity())
+            throw new IllegalArgumentException("region does not fit in the buffer");
+        // duplicate so we can own the byte order. absolute gets and puts never touch the position.
+        this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.offset = offset;
+        this.numBytes = numBytes;
+    }
+
+    public long getBitLength() {
+        return numBytes * 8L;
+    }
+
+    public void set(long bit, boolean value) {
+        int index = byteIndex(bit);
+        int mask = 0x01 << (int)(bit % 8L);
+        byte b = buf.get(index);
+        buf.put(index, (byte)(value ? b | mask : b & ~mask));
+    }
+
+    public void set(long... bits) {
+        for (long bit : bits)
+            set(bit, true);
+    }
+
+    public boolean get(long bit) {
+        return (buf.get(byteIndex(bit)) & (0x01 << (int)(bit % 8L))) != 0;
+    }
+
+    public long[] getAsserted() {
+        int words = wordCount();
+        long[] asserted = new long[(int)cardinality()];
+        int pos = 0;
+        for (int w = 0; w < words; w++) {
+            long word = word(w);
+            while (word != 0) {
+                asserted[pos++] = ((long)w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return asserted;
+    }
+
+    public long nextSetBit(long fromBit) {
+        if (fromBit < 0)
+            fromBit = 0;
+        int words = wordCount();
+        int w = (int)(fromBit >>> 6);
+        if (w >= words)
+            return -1;
+        long word = word(w) & (-1L << fromBit);
+        while (true) {
+            if (word != 0)
+                return ((long)w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words)
+                return -1;
+            word = word(w);
+        }
+    }
+
+    public void visitAsserted(BitObserver observer) {
+        int words = wordCount();
+        for (int w = 0; w < words; w++) {
+            long word = word(w);
+            while (word != 0) {
+                observer.observe(((long)w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    public long cardinality() {
+        int words = wordCount();
+        long count = 0;
+        for (int w = 0; w < words; w++)
+            count += Long.bitCount(word(w));
+        return count;
+    }
+
+    public void setAll(byte[] b) {
+        if (b.length != numBytes)
+            throw new IllegalArgumentException("new buffer length must match existing buffer length");
+        for (int i = 0; i < numBytes; i++)
+            buf.put(offset + i, b[i]);
+    }
+
+    public void clear() {
+        int i = 0;
+        for (; i + 8 <= numBytes; i += 8)
+            buf.putLong(offset + i, 0L);
+        for (; i < numBytes; i++)
+            buf.put(offset + i, (byte)0);
+    }
+
+    public boolean isEmpty() {
+        int words = wordCount();
+        for (int w = 0; w < words; w++)
+            if (word(w) != 0)
+                return false;
+        return true;
+    }
+
+    public void and(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        ByteBufferBitmap o = viewOf(other);
+        if (o == null) {
+            BitmapUtils.andBitByBit(this, other);
+            return;
+        }
+        for (int w = 0; w < wordCount(); w++)
+            putWord(w, word(w) & o.word(w));
+    }
+
+    public void or(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        ByteBufferBitmap o = viewOf(other);
+        if (o == null) {
+            BitmapUtils.orBitByBit(this, other);
+            return;
+        }
+        for (int w = 0; w < wordCount(); w++)
+            putWord(w, word(w) | o.word(w));
+    }
+
+    public void andNot(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        ByteBufferBitmap o = viewOf(other);
+        if (o == null) {
+            BitmapUtils.andNotBitByBit(this, other);
+            return;
+        }
+        for (int w = 0; w < wordCount(); w++)
+            putWord(w, word(w) & ~o.word(w));
+    }
+
+    public void xor(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        ByteBufferBitmap o = viewOf(other);
+        if (o == null) {
+            BitmapUtils.xorBitByBit(this, other);
+            return;
+        }
+        for (int w = 0; w < wordCount(); w++)
+            putWord(w, word(w) ^ o.word(w));
+    }
+
+    /** copies the region out of the buffer. */
+    public byte[] toBytes() {
+        return toBytes(0, numBytes);
+    }
+
+    public byte[] toBytes(int byteStart, int numBytes) {
+        byte[] copy = new byte[numBytes];
+        for (int i = 0; i < numBytes; i++)
+            copy[i] = buf.get(offset + byteStart + i);
+        return copy;
+    }
+
+    /** the clone lives on the heap. */
+    public IBitmap clone() throws CloneNotSupportedException {
+        return new ByteBufferBitmap(ByteBuffer.wrap(toBytes()), 0, numBytes);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || !(obj instanceof IBitmap))
+            return false;
+        return MemoryBitmap.bitmapEquals(this, (IBitmap) obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return MemoryBitmap.bitmapHashCode(this);
+    }
+
+    private int byteIndex(long bit) {
+        if (bit < 0 || bit >= numBytes * 8L)
+            throw new IndexOutOfBoundsException(Long.toString(bit));
+        return offset + (int)(bit / 8L);
+    }
+
+    private int wordCount() {
+        return (numBytes + 7) >>> 3;
+    }
+
+    // reads a 64 bit word, zero padding the tail if the region isn't a multiple of 8 bytes.
+    private long word(int w) {
+        int start = w << 3;
+        if (start + 8 <= numBytes)
+            return buf.getLong(offset + start);
+        long word = 0;
+        for (int i = start; i < numBytes; i++)
+            word |= (buf.get(offset + i) & 0xffL) << ((i - start) << 3);
+        return word;
+    }
+
+    private void putWord(int w, long word) {
+        int start = w << 3;
+        if (start + 8 <= numBytes) {
+            buf.putLong(offset + start, word);
+            return;
+        }
+        for (int i = start; i < numBytes; i++)
+            buf.put(offset + i, (byte)(word >>> ((i - start) << 3)));
+    }
+
+    // MemoryBitmap2 shares our layout, so its buffer can be viewed without copying.
+    private static ByteBufferBitmap viewOf(IBitmap other) {
+        if (other instanceof ByteBufferBitmap)
+            return (ByteBufferBitmap)other;
+        if (other instanceof MemoryBitmap2) {
+            byte[] raw = other.toBytes();
+            return new ByteBufferBitmap(ByteBuffer.wrap(raw), 0, raw.length);
+        }
+        return null;
+    }
+}
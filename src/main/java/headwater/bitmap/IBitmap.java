@@ -16,15 +16,40 @@ public interface IBitmap extends Cloneable {
     /** returns which bits are asserted */
     public long[] getAsserted();
     
+    /** the first asserted bit at or after fromBit, or -1 if there are none. */
+    public long nextSetBit(long fromBit);
+    
+    /** calls the observer for each asserted bit in ascending order, without building an array. */
+    public void visitAsserted(BitObserver observer);
+    
+    /** number of asserted bits. */
+    public long cardinality();
+    
     public void setAll(byte[] b);
     
     public void clear();
     
     public boolean isEmpty();
     
-    // potentially wasteful.
+    /** this = this AND other. bitmaps must be the same length. */
+    public void and(IBitmap other);
+    
+    /** this = this OR other. bitmaps must be the same length. */
+    public void or(IBitmap other);
+    
+    /** this = this AND NOT other. bitmaps must be the same length. */
+    public void andNot(IBitmap other);
+    
+    /** this = this XOR other. bitmaps must be the same length. */
+    public void xor(IBitmap other);
+    
+    /**
+     * the serialized form, which this bitmap's BitmapWrapper turns back into a bitmap. For most bitmaps that's the raw
+     * little-endian layout; RoaringBitmap writes a compact form instead. potentially wasteful.
+     */
     public byte[] toBytes();
     
+    /** always the raw little-endian layout of the range, whatever toBytes() writes. */
     public byte[] toBytes(int byteStart, int numBytes);
     
     public IBitmap clone() throws CloneNotSupportedException;
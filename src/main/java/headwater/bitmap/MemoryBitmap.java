@@ -46,14 +46,21 @@ public class MemoryBitmap implements IBitmap {
         
         if (b.getBitLength() != a.getBitLength())
             return false;
-        long[] aAsserted = a.getAsserted();
-        long[] bAsserted = b.getAsserted();
-        if (aAsserted.length != bAsserted.length)
-            return false;
-        for (int i = 0; i < aAsserted.length; i++)
-            if (aAsserted[i] != bAsserted[i])
-                return false;
-        return true;
+        long aBit = a.nextSetBit(0);
+        long bBit = b.nextSetBit(0);
+        while (aBit >= 0 && aBit == bBit) {
+            aBit = a.nextSetBit(aBit + 1);
+            bBit = b.nextSetBit(bBit + 1);
+        }
+        return aBit == bBit;
+    }
+    
+    /** agrees with bitmapEquals(): only the length and the set bits count, not how they're stored. */
+    public static int bitmapHashCode(IBitmap a) {
+        int hash = (int)(a.getBitLength() ^ (a.getBitLength() >>> 32));
+        for (long bit = a.nextSetBit(0); bit >= 0; bit = a.nextSetBit(bit + 1))
+            hash = 31 * hash + (int)(bit ^ (bit >>> 32));
+        return hash;
     }
 
     public long getBitLength() {
@@ -88,6 +95,29 @@ public class MemoryBitmap implements IBitmap {
         return asserted;
     }
 
+    public long nextSetBit(long fromBit) {
+        return bits.nextSetBit(Math.max(0, fromBit));
+    }
+
+    public void visitAsserted(BitObserver observer) {
+        long base = 0;
+        for (int p = 0; p < bits.getPageCount(); p++) {
+            long[] page = bits.getPage(p);
+            for (int i = 0; i < page.length; i++) {
+                long word = page[i];
+                while (word != 0) {
+                    observer.observe(base + ((long)i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            base += (long)page.length << 6;
+        }
+    }
+
+    public long cardinality() {
+        return bits.cardinality();
+    }
+
     public void clear() {
         bits.clear(0, numBits);
     }
@@ -96,6 +126,38 @@ public class MemoryBitmap implements IBitmap {
         return bits.isEmpty();
     }
 
+    public void and(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap)
+            bits.intersect(((MemoryBitmap)other).bits);
+        else
+            BitmapUtils.andBitByBit(this, other);
+    }
+
+    public void or(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap)
+            bits.union(((MemoryBitmap)other).bits);
+        else
+            BitmapUtils.orBitByBit(this, other);
+    }
+
+    public void andNot(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap)
+            bits.remove(((MemoryBitmap)other).bits);
+        else
+            BitmapUtils.andNotBitByBit(this, other);
+    }
+
+    public void xor(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap)
+            bits.xor(((MemoryBitmap)other).bits);
+        else
+            BitmapUtils.xorBitByBit(this, other);
+    }
+
     public void setAll(byte[] b) {
         // todo: ugh. make this better.
         bits = new OpenBitSet(b.length * 8);
@@ -4,6 +4,12 @@ import headwater.Utils;
 
 public class MemoryBitmap2 implements IBitmap {
     
+    public static final BitmapWrapper WRAPPER = new BitmapWrapper() {
+        public IBitmap wrap(byte[] buf) {
+            return MemoryBitmap2.wrap(buf);
+        }
+    };
+    
     private final int bitLength;
     private byte[] buf;
     
@@ -44,6 +50,25 @@ public class MemoryBitmap2 implements IBitmap {
         return Utils.getAsserted(buf);
     }
 
+    public long nextSetBit(long fromBit) {
+        return Utils.nextSetBit(buf, fromBit);
+    }
+
+    public void visitAsserted(BitObserver observer) {
+        int words = (buf.length + 7) >>> 3;
+        for (int w = 0; w < words; w++) {
+            long word = Utils.littleEndianWord(buf, w);
+            while (word != 0) {
+                observer.observe(((long)w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    public long cardinality() {
+        return Utils.cardinality(buf);
+    }
+
     public void setAll(byte[] b) {
         if (b.length != this.buf.length)
             throw new Error("new buffer length must match existing buffer length");
@@ -61,6 +86,49 @@ public class MemoryBitmap2 implements IBitmap {
         return true;
     }
 
+    // the byte loops below are simple enough for the JIT to unroll and vectorize, so we still end up working on
+    // whole words.
+    
+    public void and(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap2) {
+            byte[] obuf = ((MemoryBitmap2)other).buf;
+            for (int i = 0; i < buf.length; i++)
+                buf[i] &= obuf[i];
+        } else
+            BitmapUtils.andBitByBit(this, other);
+    }
+
+    public void or(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap2) {
+            byte[] obuf = ((MemoryBitmap2)other).buf;
+            for (int i = 0; i < buf.length; i++)
+                buf[i] |= obuf[i];
+        } else
+            BitmapUtils.orBitByBit(this, other);
+    }
+
+    public void andNot(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap2) {
+            byte[] obuf = ((MemoryBitmap2)other).buf;
+            for (int i = 0; i < buf.length; i++)
+                buf[i] &= ~obuf[i];
+        } else
+            BitmapUtils.andNotBitByBit(this, other);
+    }
+
+    public void xor(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (other instanceof MemoryBitmap2) {
+            byte[] obuf = ((MemoryBitmap2)other).buf;
+            for (int i = 0; i < buf.length; i++)
+                buf[i] ^= obuf[i];
+        } else
+            BitmapUtils.xorBitByBit(this, other);
+    }
+
     public byte[] toBytes() {
         return buf;
     }
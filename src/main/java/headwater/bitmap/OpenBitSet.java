@@ -457,6 +457,48 @@ public class OpenBitSet implements Serializable, Cloneable {
     intersect(other);
   }
 
+  /** this = this OR other.  Bits of other beyond the capacity of this set are ignored (pages are not grown). */
+  public void union(OpenBitSet other) {
+    int newLen = Math.min(this.wlen, other.wlen);
+    long[][] thisArr = this.bits;
+    long[][] otherArr = other.bits;
+    int pos = newLen;
+    while(--pos>=0) {
+      thisArr[pos / PAGE_SIZE][pos % PAGE_SIZE] |= otherArr[pos / PAGE_SIZE][pos % PAGE_SIZE];
+    }
+  }
+
+  /** see {@link #union} */
+  public void or(OpenBitSet other) {
+    union(other);
+  }
+
+  /** Remove all elements set in other. this = this AND_NOT other */
+  public void remove(OpenBitSet other) {
+    int idx = Math.min(this.wlen, other.wlen);
+    long[][] thisArr = this.bits;
+    long[][] otherArr = other.bits;
+    while(--idx>=0) {
+      thisArr[idx / PAGE_SIZE][idx % PAGE_SIZE] &= ~otherArr[idx / PAGE_SIZE][idx % PAGE_SIZE];
+    }
+  }
+
+  /** see {@link #remove} */
+  public void andNot(OpenBitSet other) {
+    remove(other);
+  }
+
+  /** this = this XOR other.  Bits of other beyond the capacity of this set are ignored (pages are not grown). */
+  public void xor(OpenBitSet other) {
+    int newLen = Math.min(this.wlen, other.wlen);
+    long[][] thisArr = this.bits;
+    long[][] otherArr = other.bits;
+    int pos = newLen;
+    while(--pos>=0) {
+      thisArr[pos / PAGE_SIZE][pos % PAGE_SIZE] ^= otherArr[pos / PAGE_SIZE][pos % PAGE_SIZE];
+    }
+  }
+
   /** Lowers numWords, the number of words in use,
    * by checking for trailing zero words.
    */
@@ -0,0 +1,913 @@
+package headwater.bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed bitmap in the style of Roaring. Bits are grouped into 2^16 bit chunks keyed by their high bits and each
+ * chunk lives in whichever container is smallest: a sorted array of low bits (sparse), a plain bitset (dense) or a
+ * list of runs (contiguous ranges).
+ *
+ * Unlike the other bitmaps, toBytes() returns a compact serialized form that only wrap() (or WRAPPER) understands. It
+ * starts with MAGIC and a version byte, so it can be told apart from raw bitmaps (see COMPATIBLE_WRAPPER). setAll() and
+ * toBytes(int, int) still deal in the raw little-endian layout.
+ */
+public class RoaringBitmap implements IBitmap {
+    private static final int CHUNK_SHIFT = 16;
+    private static final long CHUNK_BITS = 1L << CHUNK_SHIFT;
+    private static final long MAX_BIT_LENGTH = CHUNK_BITS * CHUNK_BITS;
+
+    /** the first four bytes of the compact form. */
+    public static final int MAGIC = 0x48575242;
+    private static final byte VERSION = 1;
+
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+    private static final byte RUN = 2;
+
+    public static final BitmapWrapper WRAPPER = new BitmapWrapper() {
+        public IBitmap wrap(byte[] buf) {
+            return RoaringBitmap.wrap(buf);
+        }
+    };
+
+    /**
+     * reads the compact form when the bytes start with one, and anything else as a raw MemoryBitmap2. Columns written
+     * before an index switched to RoaringBitmap can be read alongside the ones written after.
+     */
+    public static final BitmapWrapper COMPATIBLE_WRAPPER = new BitmapWrapper() {
+        public IBitmap wrap(byte[] buf) {
+            return isCompact(buf) ? RoaringBitmap.wrap(buf) : MemoryBitmap2.wrap(buf);
+        }
+    };
+
+    private final long bitLength;
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    public RoaringBitmap(long bitLength) {
+        if (bitLength % 8 != 0)
+            throw new IllegalArgumentException("bitLength must be evenly divisible by 8");
+        if (bitLength > MAX_BIT_LENGTH)
+            throw new IllegalArgumentException("bitLength may not exceed 2^32");
+        this.bitLength = bitLength;
+        this.keys = new char[4];
+        this.containers = new Container[4];
+        this.size = 0;
+    }
+
+    public static BitmapFactory factory(final long bitLength) {
+        return new BitmapFactory() {
+            public IBitmap make() {
+                return new RoaringBitmap(bitLength);
+            }
+        };
+    }
+
+    public long getBitLength() {
+        return bitLength;
+    }
+
+    public void set(long bit, boolean value) {
+        if (bit < 0 || bit >= bitLength)
+            throw new IndexOutOfBoundsException(Long.toString(bit));
+        char key = (char)(bit >>> CHUNK_SHIFT);
+        char low = (char)bit;
+        int i = indexOf(key);
+        if (value) {
+            if (i < 0) {
+                i = -i - 1;
+                insertAt(i, key, new ArrayContainer(wordsFor(key)));
+            }
+            containers[i] = containers[i].add(low);
+        } else if (i >= 0) {
+            containers[i] = containers[i].remove(low);
+            if (containers[i].cardinality() == 0)
+                removeAt(i);
+        }
+    }
+
+    public void set(long... bits) {
+        for (long bit : bits)
+            set(bit, true);
+    }
+
+    public boolean get(long bit) {
+        if (bit < 0 || bit >= bitLength)
+            throw new IndexOutOfBoundsException(Long.toString(bit));
+        int i = indexOf((char)(bit >>> CHUNK_SHIFT));
+        return i >= 0 && containers[i].contains((char)bit);
+    }
+
+    public long[] getAsserted() {
+        long[] asserted = new long[(int)cardinality()];
+        int pos = 0;
+        for (int i = 0; i < size; i++)
+            pos = containers[i].fill(asserted, pos, ((long)keys[i]) << CHUNK_SHIFT);
+        return asserted;
+    }
+
+    public long nextSetBit(long fromBit) {
+        if (fromBit < 0)
+            fromBit = 0;
+        if (fromBit >= bitLength)
+            return -1;
+        int i = indexOf((char)(fromBit >>> CHUNK_SHIFT));
+        if (i >= 0) {
+            int low = containers[i].nextSetBit((int)(fromBit & (CHUNK_BITS - 1)));
+            if (low >= 0)
+                return (((long)keys[i]) << CHUNK_SHIFT) + low;
+            i += 1;
+        } else
+            i = -i - 1;
+        if (i < size)
+            return (((long)keys[i]) << CHUNK_SHIFT) + containers[i].nextSetBit(0);
+        return -1;
+    }
+
+    public void visitAsserted(BitObserver observer) {
+        for (int i = 0; i < size; i++)
+            containers[i].visit(observer, ((long)keys[i]) << CHUNK_SHIFT);
+    }
+
+    public long cardinality() {
+        long count = 0;
+        for (int i = 0; i < size; i++)
+            count += containers[i].cardinality();
+        return count;
+    }
+
+    /** expects the raw little-endian layout, just like the other bitmaps. */
+    public void setAll(byte[] b) {
+        if ((long)b.length * 8 != bitLength)
+            throw new IllegalArgumentException("new buffer length must match the bitmap length");
+        clear();
+        for (long start = 0; start < bitLength; start += CHUNK_BITS) {
+            char key = (char)(start >>> CHUNK_SHIFT);
+            int words = wordsFor(key);
+            long[] bits = new long[words];
+            int byteStart = (int)(start / 8);
+            int byteEnd = (int)Math.min(b.length, byteStart + CHUNK_BITS / 8);
+            for (int j = byteStart; j < byteEnd; j++)
+                bits[(j - byteStart) >>> 3] |= (b[j] & 0xffL) << (((j - byteStart) & 7) << 3);
+            Container c = new BitmapContainer(bits).shrink();
+            if (c.cardinality() > 0)
+                insertAt(size, key, c);
+        }
+    }
+
+    public void clear() {
+        keys = new char[4];
+        containers = new Container[4];
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void and(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (!(other instanceof RoaringBitmap)) {
+            BitmapUtils.andBitByBit(this, other);
+            return;
+        }
+        RoaringBitmap o = (RoaringBitmap)other;
+        int newSize = 0;
+        for (int i = 0, j = 0; i < size && j < o.size;) {
+            if (keys[i] < o.keys[j])
+                i += 1;
+            else if (keys[i] > o.keys[j])
+                j += 1;
+            else {
+                Container c = and(containers[i], o.containers[j]);
+                if (c.cardinality() > 0) {
+                    keys[newSize] = keys[i];
+                    containers[newSize] = c;
+                    newSize += 1;
+                }
+                i += 1;
+                j += 1;
+            }
+        }
+        Arrays.fill(containers, newSize, size, null);
+        size = newSize;
+    }
+
+    public void or(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (!(other instanceof RoaringBitmap)) {
+            BitmapUtils.orBitByBit(this, other);
+            return;
+        }
+        RoaringBitmap o = (RoaringBitmap)other;
+        for (int j = 0; j < o.size; j++) {
+            int i = indexOf(o.keys[j]);
+            if (i < 0)
+                insertAt(-i - 1, o.keys[j], o.containers[j].copy());
+            else
+                containers[i] = or(containers[i], o.containers[j]);
+        }
+    }
+
+    public void andNot(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (!(other instanceof RoaringBitmap)) {
+            BitmapUtils.andNotBitByBit(this, other);
+            return;
+        }
+        RoaringBitmap o = (RoaringBitmap)other;
+        for (int j = 0; j < o.size; j++) {
+            int i = indexOf(o.keys[j]);
+            if (i < 0)
+                continue;
+            containers[i] = andNot(containers[i], o.containers[j]);
+            if (containers[i].cardinality() == 0)
+                removeAt(i);
+        }
+    }
+
+    public void xor(IBitmap other) {
+        BitmapUtils.assertSameLength(this, other);
+        if (!(other instanceof RoaringBitmap)) {
+            BitmapUtils.xorBitByBit(this, other);
+            return;
+        }
+        RoaringBitmap o = (RoaringBitmap)other;
+        for (int j = 0; j < o.size; j++) {
+            int i = indexOf(o.keys[j]);
+            if (i < 0)
+                insertAt(-i - 1, o.keys[j], o.containers[j].copy());
+            else {
+                containers[i] = xor(containers[i], o.containers[j]);
+                if (containers[i].cardinality() == 0)
+                    removeAt(i);
+            }
+        }
+    }
+
+    /** switches every chunk to its smallest representation. */
+    public void optimize() {
+        for (int i = 0; i < size; i++)
+            containers[i] = containers[i].optimize();
+    }
+
+    /**
+     * compact form: MAGIC, VERSION, bitLength, container count and then (key, type, payload) for each container. Each
+     * chunk is written in its smallest representation, but the bitmap itself isn't changed, so this is safe while
+     * others are reading it.
+     */
+    public byte[] toBytes() {
+        Container[] optimized = new Container[size];
+        int length = 4 + 1 + 8 + 4;
+        for (int i = 0; i < size; i++) {
+            optimized[i] = containers[i].optimize();
+            length += 2 + 1 + optimized[i].serializedSize();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        bb.putInt(MAGIC);
+        bb.put(VERSION);
+        bb.putLong(bitLength);
+        bb.putInt(size);
+        for (int i = 0; i < size; i++) {
+            bb.putChar(keys[i]);
+            bb.put(optimized[i].type());
+            optimized[i].serialize(bb);
+        }
+        return bb.array();
+    }
+
+    /** raw little-endian bytes for the range, same as the other bitmaps. */
+    public byte[] toBytes(int byteStart, int numBytes) {
+        byte[] buf = new byte[numBytes];
+        long startBit = byteStart * 8L;
+        long endBit = startBit + numBytes * 8L;
+        for (int i = 0; i < size; i++) {
+            long base = ((long)keys[i]) << CHUNK_SHIFT;
+            if (base >= endBit || base + CHUNK_BITS <= startBit)
+                continue;
+            int from = (int)Math.max(0, startBit - base);
+            for (int low = containers[i].nextSetBit(from); low >= 0; low = containers[i].nextSetBit(low + 1)) {
+                long bit = base + low;
+                if (bit >= endBit)
+                    break;
+                long rel = bit - startBit;
+                buf[(int)(rel >>> 3)] |= 1 << (int)(rel & 7);
+            }
+        }
+        return buf;
+    }
+
+    public RoaringBitmap clone() {
+        RoaringBitmap clone = new RoaringBitmap(bitLength);
+        clone.keys = Arrays.copyOf(keys, keys.length);
+        clone.containers = new Container[containers.length];
+        for (int i = 0; i < size; i++)
+            clone.containers[i] = containers[i].copy();
+        clone.size = size;
+        return clone;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || !(obj instanceof IBitmap))
+            return false;
+        return MemoryBitmap.bitmapEquals(this, (IBitmap) obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return MemoryBitmap.bitmapHashCode(this);
+    }
+
+    /** whether buf is a whole compact form, as opposed to (say) a raw bitmap. */
+    public static boolean isCompact(byte[] buf) {
+        if (buf.length < 4 + 1 + 8 + 4 || ByteBuffer.wrap(buf).getInt() != MAGIC || buf[4] != VERSION)
+            return false;
+        // a raw bitmap could start with the magic by chance. it won't also parse to exactly its own length.
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            read(bb);
+            return bb.remaining() == 0;
+        } catch (RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /** reads the compact form. Throws IllegalArgumentException on anything else, raw bitmaps included. */
+    public static RoaringBitmap wrap(byte[] buf) {
+        if (buf.length < 5 || ByteBuffer.wrap(buf).getInt() != MAGIC)
+            throw new IllegalArgumentException("not a serialized RoaringBitmap (wrong magic)");
+        if (buf[4] != VERSION)
+            throw new IllegalArgumentException("unknown RoaringBitmap version " + buf[4]);
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        RoaringBitmap bitmap = read(bb);
+        if (bb.remaining() != 0)
+            throw new IllegalArgumentException(bb.remaining() + " bytes left over after a serialized RoaringBitmap");
+        return bitmap;
+    }
+
+    // leaves bb just past the bitmap.
+    private static RoaringBitmap read(ByteBuffer bb) {
+        bb.position(5);
+        RoaringBitmap bitmap = new RoaringBitmap(bb.getLong());
+        int count = bb.getInt();
+        for (int i = 0; i < count; i++) {
+            char key = bb.getChar();
+            byte type = bb.get();
+            int words = bitmap.wordsFor(key);
+            Container c;
+            if (type == ARRAY)
+                c = ArrayContainer.deserialize(words, bb);
+            else if (type == BITMAP)
+                c = BitmapContainer.deserialize(words, bb);
+            else if (type == RUN)
+                c = RunContainer.deserialize(words, bb);
+            else
+                throw new IllegalArgumentException("Unknown container type " + type);
+            bitmap.insertAt(bitmap.size, key, c);
+        }
+        return bitmap;
+    }
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    // number of 64 bit words in the chunk for this key. the last chunk may be short.
+    private int wordsFor(char key) {
+        long universe = Math.min(CHUNK_BITS, bitLength - (((long)key) << CHUNK_SHIFT));
+        return (int)((universe + 63) >>> 6);
+    }
+
+    private void insertAt(int i, char key, Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size += 1;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        size -= 1;
+        containers[size] = null;
+    }
+
+    // binary operations between containers. none of these mutate their arguments.
+
+    private static Container and(Container a, Container b) {
+        a = a.expand();
+        b = b.expand();
+        if (a instanceof ArrayContainer)
+            return ((ArrayContainer)a).filter(b, true);
+        if (b instanceof ArrayContainer)
+            return ((ArrayContainer)b).filter(a, true);
+        long[] x = ((BitmapContainer)a).bits, y = ((BitmapContainer)b).bits;
+        long[] bits = new long[x.length];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = x[i] & y[i];
+        return new BitmapContainer(bits).shrink();
+    }
+
+    private static Container or(Container a, Container b) {
+        a = a.expand();
+        b = b.expand();
+        if (a instanceof ArrayContainer && b instanceof ArrayContainer)
+            return ((ArrayContainer)a).merge((ArrayContainer)b, false);
+        long[] bits = a.toBitmap().bits;
+        if (b instanceof ArrayContainer) {
+            ArrayContainer ac = (ArrayContainer)b;
+            for (int i = 0; i < ac.card; i++)
+                bits[ac.content[i] >>> 6] |= 1L << ac.content[i];
+        } else {
+            long[] y = ((BitmapContainer)b).bits;
+            for (int i = 0; i < bits.length; i++)
+                bits[i] |= y[i];
+        }
+        return new BitmapContainer(bits);
+    }
+
+    private static Container andNot(Container a, Container b) {
+        a = a.expand();
+        b = b.expand();
+        if (a instanceof ArrayContainer)
+            return ((ArrayContainer)a).filter(b, false);
+        long[] bits = a.toBitmap().bits;
+        if (b instanceof ArrayContainer) {
+            ArrayContainer ac = (ArrayContainer)b;
+            for (int i = 0; i < ac.card; i++)
+                bits[ac.content[i] >>> 6] &= ~(1L << ac.content[i]);
+        } else {
+            long[] y = ((BitmapContainer)b).bits;
+            for (int i = 0; i < bits.length; i++)
+                bits[i] &= ~y[i];
+        }
+        return new BitmapContainer(bits).shrink();
+    }
+
+    private static Container xor(Container a, Container b) {
+        a = a.expand();
+        b = b.expand();
+        if (a instanceof ArrayContainer && b instanceof ArrayContainer)
+            return ((ArrayContainer)a).merge((ArrayContainer)b, true);
+        long[] bits = a.toBitmap().bits;
+        long[] y = b.toBitmap().bits;
+        for (int i = 0; i < bits.length; i++)
+            bits[i] ^= y[i];
+        return new BitmapContainer(bits).shrink();
+    }
+
+    private static abstract class Container {
+        abstract byte type();
+        abstract int words();
+        abstract int cardinality();
+        abstract boolean contains(char x);
+        abstract Container add(char x);
+        abstract Container remove(char x);
+
+        /** -1 if there are no more bits. */
+        abstract int nextSetBit(int from);
+        abstract int fill(long[] out, int pos, long base);
+        abstract void visit(BitObserver observer, long base);
+        abstract Container copy();
+
+        /** a new bitmap container with the same bits. */
+        abstract BitmapContainer toBitmap();
+
+        /** turns runs into an array or bitmap. the others return themselves. */
+        abstract Container expand();
+        abstract int serializedSize();
+        abstract void serialize(ByteBuffer bb);
+
+        // arrays cost 2 bytes per bit, bitmaps 8 bytes per word.
+        int maxArrayCardinality() {
+            return words() * 4;
+        }
+
+        int countRuns() {
+            int runs = 0;
+            int last = -2;
+            for (int x = nextSetBit(0); x >= 0; x = nextSetBit(x + 1)) {
+                if (x != last + 1)
+                    runs += 1;
+                last = x;
+            }
+            return runs;
+        }
+
+        Container optimize() {
+            int card = cardinality();
+            int runs = countRuns();
+            int arraySize = 2 + 2 * card;
+            int bitmapSize = 8 * words();
+            int runSize = 2 + 4 * runs;
+            if (runSize < arraySize && runSize < bitmapSize)
+                return type() == RUN ? this : RunContainer.from(this, runs);
+            Container expanded = expand();
+            if (arraySize < bitmapSize)
+                return expanded instanceof ArrayContainer ? expanded : ArrayContainer.from(expanded);
+            return expanded instanceof BitmapContainer ? expanded : expanded.toBitmap();
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        private final int words;
+        private char[] content;
+        private int card;
+
+        ArrayContainer(int words) {
+            this(words, new char[4], 0);
+        }
+
+        ArrayContainer(int words, char[] content, int card) {
+            this.words = words;
+            this.content = content;
+            this.card = card;
+        }
+
+        static ArrayContainer from(Container c) {
+            char[] content = new char[c.cardinality()];
+            int pos = 0;
+            for (int x = c.nextSetBit(0); x >= 0; x = c.nextSetBit(x + 1))
+                content[pos++] = (char)x;
+            return new ArrayContainer(c.words(), content, pos);
+        }
+
+        byte type() { return ARRAY; }
+        int words() { return words; }
+        int cardinality() { return card; }
+
+        boolean contains(char x) {
+            return Arrays.binarySearch(content, 0, card, x) >= 0;
+        }
+
+        Container add(char x) {
+            int i = Arrays.binarySearch(content, 0, card, x);
+            if (i >= 0)
+                return this;
+            if (card >= maxArrayCardinality())
+                return toBitmap().add(x);
+            i = -i - 1;
+            if (card == content.length)
+                content = Arrays.copyOf(content, Math.min(content.length * 2, maxArrayCardinality()));
+            System.arraycopy(content, i, content, i + 1, card - i);
+            content[i] = x;
+            card += 1;
+            return this;
+        }
+
+        Container remove(char x) {
+            int i = Arrays.binarySearch(content, 0, card, x);
+            if (i >= 0) {
+                System.arraycopy(content, i + 1, content, i, card - i - 1);
+                card -= 1;
+            }
+            return this;
+        }
+
+        int nextSetBit(int from) {
+            if (from > Character.MAX_VALUE)
+                return -1;
+            int i = Arrays.binarySearch(content, 0, card, (char)from);
+            if (i < 0)
+                i = -i - 1;
+            return i < card ? content[i] : -1;
+        }
+
+        int fill(long[] out, int pos, long base) {
+            for (int i = 0; i < card; i++)
+                out[pos++] = base + content[i];
+            return pos;
+        }
+
+        void visit(BitObserver observer, long base) {
+            for (int i = 0; i < card; i++)
+                observer.observe(base + content[i]);
+        }
+
+        Container copy() {
+            return new ArrayContainer(words, Arrays.copyOf(content, Math.max(card, 1)), card);
+        }
+
+        BitmapContainer toBitmap() {
+            long[] bits = new long[words];
+            for (int i = 0; i < card; i++)
+                bits[content[i] >>> 6] |= 1L << content[i];
+            return new BitmapContainer(bits, card);
+        }
+
+        Container expand() {
+            return this;
+        }
+
+        /** keeps the values that other contains (or does not contain). */
+        ArrayContainer filter(Container other, boolean keepContained) {
+            char[] result = new char[Math.max(card, 1)];
+            int pos = 0;
+            for (int i = 0; i < card; i++)
+                if (other.contains(content[i]) == keepContained)
+                    result[pos++] = content[i];
+            return new ArrayContainer(words, result, pos);
+        }
+
+        /** union of both arrays, or the symmetric difference when exclusive is set. */
+        Container merge(ArrayContainer other, boolean exclusive) {
+            char[] result = new char[card + other.card];
+            int pos = 0, i = 0, j = 0;
+            while (i < card && j < other.card) {
+                if (content[i] < other.content[j])
+                    result[pos++] = content[i++];
+                else if (content[i] > other.content[j])
+                    result[pos++] = other.content[j++];
+                else {
+                    if (!exclusive)
+                        result[pos++] = content[i];
+                    i += 1;
+                    j += 1;
+                }
+            }
+            while (i < card)
+                result[pos++] = content[i++];
+            while (j < other.card)
+                result[pos++] = other.content[j++];
+            ArrayContainer merged = new ArrayContainer(words, result, pos);
+            return pos > maxArrayCardinality() ? merged.toBitmap() : merged;
+        }
+
+        int serializedSize() {
+            return 2 + 2 * card;
+        }
+
+        void serialize(ByteBuffer bb) {
+            bb.putChar((char)card);
+            for (int i = 0; i < card; i++)
+                bb.putChar(content[i]);
+        }
+
+        static ArrayContainer deserialize(int words, ByteBuffer bb) {
+            int card = bb.getChar();
+            char[] content = new char[Math.max(card, 1)];
+            for (int i = 0; i < card; i++)
+                content[i] = bb.getChar();
+            return new ArrayContainer(words, content, card);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        private final long[] bits;
+        private int card;
+
+        BitmapContainer(long[] bits) {
+            this(bits, (int)OpenBitSet.BitUtil.pop_array(bits, 0, bits.length));
+        }
+
+        BitmapContainer(long[] bits, int card) {
+            this.bits = bits;
+            this.card = card;
+        }
+
+        byte type() { return BITMAP; }
+        int words() { return bits.length; }
+        int cardinality() { return card; }
+
+        boolean contains(char x) {
+            return (bits[x >>> 6] & (1L << x)) != 0;
+        }
+
+        Container add(char x) {
+            long before = bits[x >>> 6];
+            long after = before | (1L << x);
+            if (before != after) {
+                bits[x >>> 6] = after;
+                card += 1;
+            }
+            return this;
+        }
+
+        Container remove(char x) {
+            long before = bits[x >>> 6];
+            long after = before & ~(1L << x);
+            if (before != after) {
+                bits[x >>> 6] = after;
+                card -= 1;
+            }
+            return shrink();
+        }
+
+        /** switches to an array if we have become sparse. */
+        Container shrink() {
+            return card <= maxArrayCardinality() ? ArrayContainer.from(this) : this;
+        }
+
+        int nextSetBit(int from) {
+            int i = from >>> 6;
+            if (i >= bits.length)
+                return -1;
+            long word = bits[i] & (-1L << from);
+            while (true) {
+                if (word != 0)
+                    return (i << 6) + Long.numberOfTrailingZeros(word);
+                if (++i == bits.length)
+                    return -1;
+                word = bits[i];
+            }
+        }
+
+        int fill(long[] out, int pos, long base) {
+            for (int i = 0; i < bits.length; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    out[pos++] = base + (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return pos;
+        }
+
+        void visit(BitObserver observer, long base) {
+            for (int i = 0; i < bits.length; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    observer.observe(base + (i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        Container copy() {
+            return new BitmapContainer(Arrays.copyOf(bits, bits.length), card);
+        }
+
+        BitmapContainer toBitmap() {
+            return (BitmapContainer)copy();
+        }
+
+        Container expand() {
+            return this;
+        }
+
+        int serializedSize() {
+            return 8 * bits.length;
+        }
+
+        void serialize(ByteBuffer bb) {
+            for (long word : bits)
+                bb.putLong(word);
+        }
+
+        static BitmapContainer deserialize(int words, ByteBuffer bb) {
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++)
+                bits[i] = bb.getLong();
+            return new BitmapContainer(bits);
+        }
+    }
+
+    // runs are stored as (start, length - 1) pairs. They are read-mostly: mutating one expands it first.
+    private static class RunContainer extends Container {
+        private final int words;
+        private final char[] runs;
+        private final int nruns;
+
+        RunContainer(int words, char[] runs, int nruns) {
+            this.words = words;
+            this.runs = runs;
+            this.nruns = nruns;
+        }
+
+        static RunContainer from(Container c, int nruns) {
+            char[] runs = new char[nruns * 2];
+            int r = -1;
+            int last = -2;
+            for (int x = c.nextSetBit(0); x >= 0; x = c.nextSetBit(x + 1)) {
+                if (x != last + 1) {
+                    r += 1;
+                    runs[2 * r] = (char)x;
+                }
+                runs[2 * r + 1] = (char)(x - runs[2 * r]);
+                last = x;
+            }
+            return new RunContainer(c.words(), runs, nruns);
+        }
+
+        byte type() { return RUN; }
+        int words() { return words; }
+
+        int cardinality() {
+            int card = 0;
+            for (int r = 0; r < nruns; r++)
+                card += runs[2 * r + 1] + 1;
+            return card;
+        }
+
+        int countRuns() {
+            return nruns;
+        }
+
+        // index of the last run starting at or before x, or -1.
+        private int runFor(int x) {
+            int lo = 0, hi = nruns - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (runs[2 * mid] <= x) {
+                    found = mid;
+                    lo = mid + 1;
+                } else
+                    hi = mid - 1;
+            }
+            return found;
+        }
+
+        boolean contains(char x) {
+            int r = runFor(x);
+            return r >= 0 && x - runs[2 * r] <= runs[2 * r + 1];
+        }
+
+        Container add(char x) {
+            return contains(x) ? this : expand().add(x);
+        }
+
+        Container remove(char x) {
+            return contains(x) ? expand().remove(x) : this;
+        }
+
+        int nextSetBit(int from) {
+            int r = runFor(from);
+            if (r >= 0 && from - runs[2 * r] <= runs[2 * r + 1])
+                return from;
+            return r + 1 < nruns ? runs[2 * (r + 1)] : -1;
+        }
+
+        int fill(long[] out, int pos, long base) {
+            for (int r = 0; r < nruns; r++) {
+                int start = runs[2 * r];
+                int end = start + runs[2 * r + 1];
+                for (int x = start; x <= end; x++)
+                    out[pos++] = base + x;
+            }
+            return pos;
+        }
+
+        void visit(BitObserver observer, long base) {
+            for (int r = 0; r < nruns; r++) {
+                int start = runs[2 * r];
+                int end = start + runs[2 * r + 1];
+                for (int x = start; x <= end; x++)
+                    observer.observe(base + x);
+            }
+        }
+
+        Container copy() {
+            return this; // immutable.
+        }
+
+        BitmapContainer toBitmap() {
+            long[] bits = new long[words];
+            int card = 0;
+            for (int r = 0; r < nruns; r++) {
+                int start = runs[2 * r];
+                int end = start + runs[2 * r + 1] + 1;
+                card += end - start;
+                int startWord = start >>> 6, endWord = (end - 1) >>> 6;
+                for (int w = startWord; w <= endWord; w++) {
+                    long mask = -1L;
+                    if (w == startWord)
+                        mask &= -1L << start;
+                    if (w == endWord)
+                        mask &= -1L >>> -end;
+                    bits[w] |= mask;
+                }
+            }
+            return new BitmapContainer(bits, card);
+        }
+
+        Container expand() {
+            return toBitmap().shrink();
+        }
+
+        int serializedSize() {
+            return 2 + 4 * nruns;
+        }
+
+        void serialize(ByteBuffer bb) {
+            bb.putChar((char)nruns);
+            for (int i = 0; i < nruns * 2; i++)
+                bb.putChar(runs[i]);
+        }
+
+        static RunContainer deserialize(int words, ByteBuffer bb) {
+            int nruns = bb.getChar();
+            char[] runs = new char[nruns * 2];
+            for (int i = 0; i < runs.length; i++)
+                runs[i] = bb.getChar();
+            return new RunContainer(words, runs, nruns);
+        }
+    }
+}
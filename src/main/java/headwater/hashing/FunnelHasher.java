@@ -5,8 +5,8 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.PrimitiveSink;
+import com.google.common.primitives.UnsignedLongs;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 /**
@@ -16,11 +16,13 @@ import java.util.Comparator;
 public abstract class FunnelHasher<T> implements Comparator<T> {
     private final HashFunction hashFunction;
     private final Funnel<T> funnel;
-    private final BigInteger bits;
+    private final long bits;
     
     public FunnelHasher(HashFunction hashFunction, long bits) {
+        if (bits <= 0)
+            throw new IllegalArgumentException("bits must be positive");
         this.hashFunction = hashFunction;
-        this.bits = new BigInteger(Long.toString(bits));
+        this.bits = bits;
         funnel = new Funnel<T>() {
             public void funnel(T from, PrimitiveSink into) {
                 FunnelHasher.this.funnel(from, into);
@@ -30,15 +32,15 @@ public abstract class FunnelHasher<T> implements Comparator<T> {
     
     public BitHashableKey<T> hashableKey(final T t) {
         return new BitHashableKey<T>() {
-            private volatile Long hash = null;
+            private long hash;
+            // written after hash, so anybody who sees the bytes sees the hash too.
             private volatile byte[] bytes = null;
             
             private void compute() {
-                if (hash == null) {
-                    HashCode hc = hash(t);
-                    bytes = hc.asBytes();
-                    BigInteger bi = new BigInteger(this.bytes);
-                    hash = bi.mod(bits).longValue();
+                if (bytes == null) {
+                    byte[] hashBytes = hash(t).asBytes();
+                    hash = toBit(hashBytes, bits);
+                    bytes = hashBytes;
                 }
             }
             
@@ -58,6 +60,69 @@ public abstract class FunnelHasher<T> implements Comparator<T> {
         };
     }
     
+    public long getBits() {
+        return bits;
+    }
+    
+    /**
+     * Same as new BigInteger(hash).mod(BigInteger.valueOf(bits)), treating the hash as a signed big-endian number, but
+     * without allocating anything.
+     */
+    public static long toBit(byte[] hash, long bits) {
+        // power of two: the low bits of two's complement are already the (non-negative) remainder.
+        if ((bits & (bits - 1)) == 0)
+            return lastWord(hash) & (bits - 1);
+        
+        // sign extend to a whole number of words, then horner's method one word at a time: r = r * 2^64 + word.
+        int words = (hash.length + 7) / 8;
+        int pad = words * 8 - hash.length;
+        long wordBase = UnsignedLongs.remainder(-1L, bits) + 1; // 2^64 mod bits, maybe == bits.
+        if (wordBase == bits)
+            wordBase = 0;
+        long remainder = 0;
+        for (int w = 0; w < words; w++) {
+            long word = 0;
+            for (int i = w * 8 - pad; i < w * 8 - pad + 8; i++)
+                word = (word << 8) | (i < 0 ? (hash[0] < 0 ? 0xff : 0) : hash[i] & 0xff);
+            if (w == 0) {
+                remainder = word % bits;
+                if (remainder < 0)
+                    remainder += bits;
+            } else
+                remainder = addMod(mulMod(remainder, wordBase, bits), UnsignedLongs.remainder(word, bits), bits);
+        }
+        return remainder;
+    }
+    
+    private static long lastWord(byte[] hash) {
+        long word = 0;
+        for (int i = Math.max(0, hash.length - 8); i < hash.length; i++)
+            word = (word << 8) | (hash[i] & 0xff);
+        // a short hash gets sign extended.
+        if (hash.length < 8 && hash.length > 0 && hash[0] < 0)
+            word |= -1L << (hash.length * 8);
+        return word;
+    }
+    
+    // a, b < m. the sum fits in an unsigned long because m < 2^63.
+    private static long addMod(long a, long b, long m) {
+        long sum = a + b;
+        return sum < 0 || sum >= m ? sum - m : sum;
+    }
+    
+    // a, b < m.
+    private static long mulMod(long a, long b, long m) {
+        if (Long.numberOfLeadingZeros(a) + Long.numberOfLeadingZeros(b) >= 65)
+            return (a * b) % m; // product fits in 63 bits.
+        long product = 0;
+        for (int bit = 63 - Long.numberOfLeadingZeros(b); bit >= 0; bit--) {
+            product = addMod(product, product, m);
+            if (((b >>> bit) & 1) != 0)
+                product = addMod(product, a, m);
+        }
+        return product;
+    }
+    
     public HashCode hash(T t) {
         Hasher hasher = hashFunction.newHasher();
         hasher.putObject(t, funnel);
@@ -1,5 +1,9 @@
 package headwater.hashing;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.HashCode;
@@ -8,11 +12,15 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.PrimitiveSink;
 
+import headwater.Utils;
 import headwater.trigram.Trigram;
 
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class Hashers {
     private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128(543231);
@@ -61,15 +69,38 @@ public class Hashers {
         }
     };
     
-    public static synchronized <T> FunnelHasher<T> makeHasher(final Class<T> cls, long bits) {
-        return new FunnelHasher<T>(HASH_FUNCTION, bits) {
-            private final Funnel<T> delegate = funnelFor(cls);
+    // hashers are stateless, so one per (class, bits) is plenty. A class rarely has more than one or two widths, so
+    // those are a copy-on-write array that gets scanned.
+    private static final ConcurrentMap<Class<?>, FunnelHasher<?>[]> hashers = new ConcurrentHashMap<Class<?>, FunnelHasher<?>[]>();
+    
+    @SuppressWarnings("unchecked")
+    public static <T> FunnelHasher<T> makeHasher(final Class<T> cls, long bits) {
+        while (true) {
+            FunnelHasher<?>[] existing = hashers.get(cls);
+            if (existing != null)
+                for (FunnelHasher<?> hasher : existing)
+                    if (hasher.getBits() == bits)
+                        return (FunnelHasher<T>)hasher;
             
-            @Override
-            public void funnel(T from, PrimitiveSink into) {
-                delegate.funnel(from, into);
+            FunnelHasher<T> hasher = new FunnelHasher<T>(HASH_FUNCTION, bits) {
+                private final Funnel<T> delegate = funnelFor(cls);
+                
+                @Override
+                public void funnel(T from, PrimitiveSink into) {
+                    delegate.funnel(from, into);
+                }
+            };
+            if (existing == null) {
+                if (hashers.putIfAbsent(cls, new FunnelHasher<?>[]{hasher}) == null)
+                    return hasher;
+            } else {
+                FunnelHasher<?>[] grown = Arrays.copyOf(existing, existing.length + 1);
+                grown[existing.length] = hasher;
+                if (hashers.replace(cls, existing, grown))
+                    return hasher;
             }
-        };
+            // somebody beat us to it. look again.
+        }
     }
     
     @SuppressWarnings("unchecked")
@@ -104,6 +135,83 @@ public class Hashers {
     }
     
     
+    private static final Counter rowKeyHits = Utils.getMetricRegistry().counter(MetricRegistry.name(Hashers.class, "row-keys", "hits"));
+    private static final Counter rowKeyMisses = Utils.getMetricRegistry().counter(MetricRegistry.name(Hashers.class, "row-keys", "misses"));
+    private static final int ROW_KEY_CACHE_SIZE = 100000;
+    private static final Cache<RowKey, byte[]> rowKeys = CacheBuilder.newBuilder()
+            .maximumSize(ROW_KEY_CACHE_SIZE)
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .build();
+    
+    /**
+     * computeIndexRowKey(), memoized. Real text repeats trigrams constantly, so most calls are a lookup. The returned
+     * array is shared: don't modify it.
+     */
+    public static <F> byte[] getIndexRowKey(F field, Trigram trigram) {
+        long code = trigram.toCode();
+        return code < 0 ? computeIndexRowKey(field, trigram) : getIndexRowKey(field, code);
+    }
+    
+    /** same as above for a packed trigram code (see Trigram.pack()). */
+    public static <F> byte[] getIndexRowKey(F field, long trigramCode) {
+        return getIndexRowKey(field, Trigram.N, trigramCode);
+    }
+    
+    /** same as above for a gram of any length (see NGrams). */
+    public static <F> byte[] getIndexRowKey(F field, int length, long gramCode) {
+        return getRowKey(field, length, gramCode, -1);
+    }
+    
+    /** the row for a gram followed by a code point in nextBucket (see NGrams.nextBucket()). */
+    public static <F> byte[] getNextMaskRowKey(F field, int length, long gramCode, int nextBucket) {
+        return getRowKey(field, length, gramCode, nextBucket);
+    }
+    
+    private static <F> byte[] getRowKey(F field, int length, long gramCode, int nextBucket) {
+        RowKey key = new RowKey(field, length, gramCode, nextBucket);
+        byte[] indexKey = rowKeys.getIfPresent(key);
+        if (indexKey != null) {
+            rowKeyHits.inc();
+            return indexKey;
+        }
+        rowKeyMisses.inc();
+        // two threads may both compute the same key. that's fine, they get the same bytes.
+        indexKey = nextBucket < 0
+                ? computeIndexRowKey(field, length, gramCode)
+                : computeNextMaskRowKey(field, length, gramCode, nextBucket);
+        rowKeys.put(key, indexKey);
+        return indexKey;
+    }
+    
+    private static final class RowKey {
+        private final Object field;
+        private final int length;
+        private final long gramCode;
+        private final int nextBucket;
+        private final int hashCode;
+        
+        RowKey(Object field, int length, long gramCode, int nextBucket) {
+            this.field = field;
+            this.length = length;
+            this.gramCode = gramCode;
+            this.nextBucket = nextBucket;
+            this.hashCode = ((field.hashCode() * 31 + length) * 31 + nextBucket) * 31 + (int)(gramCode ^ (gramCode >>> 32));
+        }
+        
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RowKey)) return false;
+            RowKey other = (RowKey)obj;
+            return gramCode == other.gramCode && length == other.length && nextBucket == other.nextBucket
+                    && field.equals(other.field);
+        }
+    }
+    
     // always 128 bits.
     public static <F> byte[] computeIndexRowKey(F field, Trigram trigram) {
         Hasher hasher = HASH_FUNCTION.newHasher();
@@ -117,4 +225,37 @@ public class Hashers {
         byte[] indexKey = indexKeyHash.asBytes();
         return indexKey;
     }
+    
+    // hashes exactly the same bytes as the Trigram version, so the keys are interchangeable.
+    public static <F> byte[] computeIndexRowKey(F field, long trigramCode) {
+        return computeIndexRowKey(field, Trigram.N, trigramCode);
+    }
+    
+    // trigrams keep their original 12 byte form. other lengths are tagged with the length so they never share a row.
+    public static <F> byte[] computeIndexRowKey(F field, int length, long gramCode) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        @SuppressWarnings("unchecked") Funnel<F> fieldFunnel = (Funnel<F>) Hashers.funnelFor(field.getClass());
+        hasher.putObject(field, fieldFunnel);
+        if (length == Trigram.N) {
+            byte[] trigramBytes = new byte[Trigram.N * 4];
+            Trigram.toBytes(gramCode, trigramBytes);
+            hasher.putBytes(trigramBytes);
+        } else {
+            hasher.putByte((byte)'N');
+            hasher.putByte((byte)length);
+            hasher.putBytes(Utils.longToBytes(gramCode));
+        }
+        return hasher.hash().asBytes();
+    }
+    
+    public static <F> byte[] computeNextMaskRowKey(F field, int length, long gramCode, int nextBucket) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        @SuppressWarnings("unchecked") Funnel<F> fieldFunnel = (Funnel<F>) Hashers.funnelFor(field.getClass());
+        hasher.putObject(field, fieldFunnel);
+        hasher.putByte((byte)'M');
+        hasher.putByte((byte)length);
+        hasher.putByte((byte)nextBucket);
+        hasher.putBytes(Utils.longToBytes(gramCode));
+        return hasher.hash().asBytes();
+    }
 }
@@ -0,0 +1,10 @@
+package headwater.index;
+
+import java.util.Collection;
+import java.util.Map;
+
+/** a DataLookup that can fetch a field for many keys in one go, which readers use when verifying candidates. */
+public interface BulkDataLookup<K, F, V> extends DataLookup<K, F, V> {
+    /** the value of field for each key that has one. Keys without a value are left out. */
+    public Map<K, V> lookupAll(Collection<K> keys, F field);
+}
@@ -0,0 +1,237 @@
+package headwater.index;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Supplier;
+import headwater.Utils;
+import headwater.io.RowObserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the results of a StandardIndexReader, so a query that many dashboard panels send again and again is
+ * answered from memory until something it depends on is written.
+ *
+ * Each result depends on every row its plan reads. A value that matches a query contains every gram the plan looked
+ * up, so indexing it touches at least one of those rows. Give this to StandardIndexWriter.withRowObserver() and (when
+ * the writer buffers in a MemoryBitmapIO) to MemoryBitmapIO.withFlushObserver(), and every touch drops the results
+ * that depend on the row. Writes to rows that no cached result read don't take any lock. A result that was being
+ * worked out while one of its rows was touched isn't kept. Queries that depend on no row at all (a predicate like
+ * "*") are never cached.
+ *
+ * The index only ever gains bits. Replacing the value of a key that's already indexed only touches the rows of the
+ * new value, so a cached result can still hold the key for the old one; call invalidateAll() after doing that.
+ * Writers in other processes can't be seen either.
+ */
+public class CachingIndexReader<K, F> implements IndexReader<K, F, String>, RowObserver {
+    public static final int DEFAULT_SIZE = 1000;
+
+    private static final Counter resultHits = Utils.getMetricRegistry().counter(MetricRegistry.name(CachingIndexReader.class, "results", "hits"));
+    private static final Counter resultMisses = Utils.getMetricRegistry().counter(MetricRegistry.name(CachingIndexReader.class, "results", "misses"));
+    private static final Counter resultInvalidations = Utils.getMetricRegistry().counter(MetricRegistry.name(CachingIndexReader.class, "results", "invalidations"));
+
+    private final StandardIndexReader<K, F> reader;
+    private int maximumSize = DEFAULT_SIZE;
+
+    // both only change under this. dependents also holds the entries that are still being worked out, and can be
+    // checked for a row without the lock. row keys are never modified after they're made, so wrapping them is fine.
+    private final Map<Object, Entry> results = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+            if (size() <= maximumSize)
+                return false;
+            unregister(eldest.getValue());
+            return true;
+        }
+    };
+    private final Map<ByteBuffer, Set<Entry>> dependents = new ConcurrentHashMap<ByteBuffer, Set<Entry>>();
+
+    public CachingIndexReader(StandardIndexReader<K, F> reader) {
+        this.reader = reader;
+    }
+
+    /** how many results are kept. The least recently used go first. */
+    public CachingIndexReader<K, F> withMaximumSize(int maximumSize) {
+        if (maximumSize < 0)
+            throw new IllegalArgumentException("maximumSize can't be negative");
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    public Collection<K> globSearch(final F field, final String valueQuery) {
+        return new ArrayList<K>(cached("glob", Query.glob(field, valueQuery), new Supplier<Collection<K>>() {
+            public Collection<K> get() {
+                return reader.globSearch(field, valueQuery);
+            }
+        }));
+    }
+
+    public Collection<K> regexSearch(final F field, final String regex) {
+        return new ArrayList<K>(cached("regex", Query.regex(field, regex), new Supplier<Collection<K>>() {
+            public Collection<K> get() {
+                return reader.regexSearch(field, regex);
+            }
+        }));
+    }
+
+    public Collection<K> search(final Query<F> query) {
+        return new ArrayList<K>(cached("search", query, new Supplier<Collection<K>>() {
+            public Collection<K> get() {
+                return reader.search(query);
+            }
+        }));
+    }
+
+    public long globCount(final F field, final String valueQuery, final boolean verified) {
+        return cached(verified ? "count" : "candidates", Query.glob(field, valueQuery), new Supplier<Long>() {
+            public Long get() {
+                return reader.globCount(field, valueQuery, verified);
+            }
+        });
+    }
+
+    /** not cached: it usually stops long before it costs anything. */
+    public boolean globExists(F field, String valueQuery) {
+        return reader.globExists(field, valueQuery);
+    }
+
+    /** rows were written. Drops every result that read one of them. */
+    public void observeRows(Collection<byte[]> rows) {
+        if (dependents.isEmpty())
+            return;
+        List<ByteBuffer> read = new ArrayList<ByteBuffer>();
+        for (byte[] row : rows) {
+            ByteBuffer key = ByteBuffer.wrap(row);
+            if (dependents.containsKey(key))
+                read.add(key);
+        }
+        if (read.isEmpty())
+            return;
+        synchronized (this) {
+            for (ByteBuffer key : read) {
+                Set<Entry> entries = dependents.get(key);
+                if (entries == null)
+                    continue;
+                for (Entry entry : new ArrayList<Entry>(entries)) {
+                    entry.valid = false;
+                    unregister(entry);
+                    if (results.get(entry.key) == entry) {
+                        results.remove(entry.key);
+                        resultInvalidations.inc();
+                    }
+                }
+            }
+        }
+    }
+
+    /** forget everything. */
+    public synchronized void invalidateAll() {
+        for (Set<Entry> entries : dependents.values())
+            for (Entry entry : entries)
+                entry.valid = false;
+        dependents.clear();
+        results.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T cached(String method, Query<F> query, Supplier<T> search) {
+        Object key = new CacheKey(method, query);
+        Entry entry;
+        synchronized (this) {
+            entry = results.get(key);
+        }
+        if (entry != null) {
+            resultHits.inc();
+            return (T)entry.result;
+        }
+        resultMisses.inc();
+        List<byte[]> rowKeys = reader.rowKeys(query);
+        if (rowKeys == null || maximumSize == 0)
+            return search.get();
+
+        // registered before searching, so a write that lands during the search is noticed.
+        entry = new Entry(key, rowKeys);
+        synchronized (this) {
+            for (byte[] rowKey : rowKeys)
+                register(rowKey, entry);
+        }
+        T result = null;
+        try {
+            result = search.get();
+        } finally {
+            synchronized (this) {
+                if (result == null || !entry.valid)
+                    unregister(entry);
+                else {
+                    entry.result = result;
+                    Entry replaced = results.put(key, entry);
+                    if (replaced != null && replaced != entry)
+                        unregister(replaced);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void register(byte[] rowKey, Entry entry) {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        Set<Entry> entries = dependents.get(key);
+        if (entries == null) {
+            entries = new HashSet<Entry>();
+            dependents.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    private void unregister(Entry entry) {
+        for (byte[] rowKey : entry.rowKeys) {
+            ByteBuffer key = ByteBuffer.wrap(rowKey);
+            Set<Entry> entries = dependents.get(key);
+            if (entries != null && entries.remove(entry) && entries.isEmpty())
+                dependents.remove(key);
+        }
+    }
+
+    // identity equality, so two searches for the same key don't get mixed up.
+    private static class Entry {
+        private final Object key;
+        private final List<byte[]> rowKeys;
+        private boolean valid = true;
+        private Object result = null;
+
+        Entry(Object key, List<byte[]> rowKeys) {
+            this.key = key;
+            this.rowKeys = rowKeys;
+        }
+    }
+
+    private static final class CacheKey {
+        private final String method;
+        private final Query<?> query;
+
+        CacheKey(String method, Query<?> query) {
+            this.method = method;
+            this.query = query;
+        }
+
+        @Override
+        public int hashCode() {
+            return method.hashCode() * 31 + query.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey)obj;
+            return method.equals(other.method) && query.equals(other.query);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package headwater.index;
+
+import headwater.bitmap.BitObserver;
+import headwater.bitmap.IBitmap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Candidate bits for a query, kept as one bitmap per segment so that unions and intersections are done with word
+ * level bitmap operations. Segments that have no bits asserted are never kept, so an intersection only costs as much as
+ * the segments both sides have in common.
+ */
+public class CandidateSet {
+    private final int segmentBitLength;
+    private final TreeMap<Long, IBitmap> segments = new TreeMap<Long, IBitmap>();
+
+    public CandidateSet(int segmentBitLength) {
+        this.segmentBitLength = segmentBitLength;
+    }
+
+    /** this = this OR bitmap, for one segment. The bitmap is copied, so it can be live data from an IO. */
+    public void or(long segment, IBitmap bitmap) {
+        if (bitmap.isEmpty())
+            return;
+        IBitmap existing = segments.get(segment);
+        if (existing == null)
+            segments.put(segment, copy(bitmap));
+        else
+            existing.or(bitmap);
+    }
+
+    /** this = this OR other, segment by segment. */
+    public void or(CandidateSet other) {
+        for (Map.Entry<Long, IBitmap> entry : other.segments.entrySet())
+            or(entry.getKey(), entry.getValue());
+    }
+
+    /** this = this OR other, taking other's bitmaps over instead of copying them. other can't be used afterwards. */
+    public void absorb(CandidateSet other) {
+        for (Map.Entry<Long, IBitmap> entry : other.segments.entrySet()) {
+            IBitmap existing = segments.get(entry.getKey());
+            if (existing == null)
+                segments.put(entry.getKey(), entry.getValue());
+            else
+                existing.or(entry.getValue());
+        }
+        other.segments.clear();
+    }
+
+    /** this = this AND other, segment by segment. */
+    public void and(CandidateSet other) {
+        Iterator<Map.Entry<Long, IBitmap>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, IBitmap> entry = it.next();
+            IBitmap theirs = other.segments.get(entry.getKey());
+            if (theirs == null) {
+                it.remove();
+                continue;
+            }
+            entry.getValue().and(theirs);
+            if (entry.getValue().isEmpty())
+                it.remove();
+        }
+    }
+
+    /** a copy of just these segments. */
+    public CandidateSet select(Collection<Long> segments) {
+        CandidateSet selected = new CandidateSet(segmentBitLength);
+        for (Long segment : segments) {
+            IBitmap bitmap = this.segments.get(segment);
+            if (bitmap != null)
+                selected.segments.put(segment, copy(bitmap));
+        }
+        return selected;
+    }
+
+    /** segments that have candidates, in ascending order. */
+    public Collection<Long> getSegments() {
+        return Collections.unmodifiableSet(segments.keySet());
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long cardinality() {
+        long count = 0;
+        for (IBitmap bitmap : segments.values())
+            count += bitmap.cardinality();
+        return count;
+    }
+
+    /** absolute bit positions in ascending order. */
+    public long[] toBits() {
+        final long[] bits = new long[(int)cardinality()];
+        final int[] pos = new int[1];
+        for (Map.Entry<Long, IBitmap> entry : segments.entrySet()) {
+            final long segmentStart = entry.getKey() * segmentBitLength;
+            entry.getValue().visitAsserted(new BitObserver() {
+                public void observe(long bit) {
+                    bits[pos[0]++] = segmentStart + bit;
+                }
+            });
+        }
+        return pos[0] == bits.length ? bits : Arrays.copyOf(bits, pos[0]);
+    }
+
+    private static IBitmap copy(IBitmap bitmap) {
+        try {
+            return bitmap.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalArgumentException("bitmap cannot be copied", ex);
+        }
+    }
+}
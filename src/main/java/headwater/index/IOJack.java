@@ -16,6 +16,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+// not a BulkDataLookup: the values are in different rows, and IO can only read one row at a time.
 public class IOJack<K, F, V> implements KeyObserver<K, F, V>, KeyLookup<K>, DataLookup<K, F, V> {
     private static final long DEFAULT_FLUSH_THRESHOLD = 10000;
     private static final byte[] LONG_ROW_KEY = "BIT_TO_KEY_ROW".getBytes();
@@ -4,4 +4,17 @@ import java.util.Collection;
 
 public interface IndexReader<K, F, V> {
     public Collection<K> globSearch(F field, String valueQuery);
+    
+    public Collection<K> regexSearch(F field, String regex);
+    
+    public Collection<K> search(Query<F> query);
+    
+    /**
+     * verified: the exact number of matches. otherwise: the number of candidate bits, an upper bound. Either way an
+     * IllegalArgumentException if nothing in the glob can be looked up.
+     */
+    public long globCount(F field, String valueQuery, boolean verified);
+    
+    /** IllegalArgumentException if nothing in the glob can be looked up. */
+    public boolean globExists(F field, String valueQuery);
 }
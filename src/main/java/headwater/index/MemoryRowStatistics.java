@@ -0,0 +1,33 @@
+package headwater.index;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the counts in memory. Only rows written through the writer(s) sharing this instance are counted, so a row it
+ * has never seen is estimated to be empty. Every writer thread increments on every new bit, so nothing here takes a
+ * lock once a row has been seen.
+ */
+public class MemoryRowStatistics implements RowStatistics {
+    // row keys are never modified after they're made, so wrapping them (no copy) is a fine map key.
+    private final ConcurrentMap<ByteBuffer, AtomicLong> counts = new ConcurrentHashMap<ByteBuffer, AtomicLong>();
+
+    public void increment(byte[] rowKey) {
+        ByteBuffer key = ByteBuffer.wrap(rowKey);
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            AtomicLong fresh = new AtomicLong();
+            count = counts.putIfAbsent(key, fresh);
+            if (count == null)
+                count = fresh;
+        }
+        count.incrementAndGet();
+    }
+
+    public long estimate(byte[] rowKey) {
+        AtomicLong count = counts.get(ByteBuffer.wrap(rowKey));
+        return count == null ? 0 : count.get();
+    }
+}
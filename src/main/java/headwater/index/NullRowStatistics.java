@@ -0,0 +1,9 @@
+package headwater.index;
+
+public class NullRowStatistics implements RowStatistics {
+    public void increment(byte[] rowKey) { }
+    
+    public long estimate(byte[] rowKey) {
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,120 @@
+package headwater.index;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import headwater.Utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planned queries (row keys in the order they're read, and the matcher that verifies candidates), memoized by field
+ * and query. Dashboards send the same handful of queries over and over, and planning one means extracting grams,
+ * asking the statistics about every row and picking a cover. Plans are dropped after a while so they keep up with
+ * the statistics they were ordered by.
+ */
+class PlanCache<F> {
+    static final int DEFAULT_SIZE = 1000;
+    private static final long EXPIRE_SECONDS = 60;
+    
+    private static final Counter planHits = Utils.getMetricRegistry().counter(MetricRegistry.name(PlanCache.class, "plans", "hits"));
+    private static final Counter planMisses = Utils.getMetricRegistry().counter(MetricRegistry.name(PlanCache.class, "plans", "misses"));
+    private static final Timer planTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(PlanCache.class, "plans", "building"));
+    
+    private final QueryPlanner<F> planner;
+    private final Cache<PlanKey, Planned> plans;
+    
+    /** size 0 plans every query from scratch. */
+    PlanCache(QueryPlanner<F> planner, int size) {
+        this.planner = planner;
+        this.plans = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+    
+    Planned glob(F field, String glob) {
+        return get(field, glob, false);
+    }
+    
+    Planned regex(F field, String regex) {
+        return get(field, regex, true);
+    }
+    
+    /** forget everything, e.g. when the planner has been given new statistics or grams. */
+    void invalidateAll() {
+        plans.invalidateAll();
+    }
+    
+    private Planned get(F field, String query, boolean regex) {
+        PlanKey key = new PlanKey(field, query, regex);
+        Planned planned = plans.getIfPresent(key);
+        if (planned != null) {
+            planHits.inc();
+            return planned;
+        }
+        planMisses.inc();
+        // two threads may both plan the same query. that's fine, the plans are the same.
+        Timer.Context ctx = planTimer.time();
+        try {
+            if (regex)
+                planned = new Planned(planner.planRegex(field, query), ValueMatchers.regex(query));
+            else
+                planned = new Planned(planner.plan(field, query), ValueMatchers.glob(query));
+        } finally {
+            ctx.stop();
+        }
+        plans.put(key, planned);
+        return planned;
+    }
+    
+    /** a plan is shared by every search that uses it, so it can't be modified. */
+    static class Planned {
+        private final List<QueryPlanner.Term> plan;
+        private final ValueMatcher matcher;
+        
+        Planned(List<QueryPlanner.Term> plan, ValueMatcher matcher) {
+            this.plan = Collections.unmodifiableList(plan);
+            this.matcher = matcher;
+        }
+        
+        List<QueryPlanner.Term> getPlan() {
+            return plan;
+        }
+        
+        ValueMatcher getMatcher() {
+            return matcher;
+        }
+    }
+    
+    private static final class PlanKey {
+        private final Object field;
+        private final String query;
+        private final boolean regex;
+        private final int hashCode;
+        
+        PlanKey(Object field, String query, boolean regex) {
+            this.field = field;
+            this.query = query;
+            this.regex = regex;
+            this.hashCode = (field.hashCode() * 31 + query.hashCode()) * 2 + (regex ? 1 : 0);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PlanKey)) return false;
+            PlanKey other = (PlanKey)obj;
+            return regex == other.regex && query.equals(other.query) && field.equals(other.field);
+        }
+    }
+}
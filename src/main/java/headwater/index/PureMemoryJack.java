@@ -11,7 +11,7 @@ import java.util.Map;
 // don't use this in production. It's intended to facilitate testing.  In real life this will be represented by IO and
 // and a database.
 @Deprecated
-public class PureMemoryJack<K, F, V> implements KeyObserver<K, F, V>, DataLookup<K, F, V>, KeyLookup<K> {
+public class PureMemoryJack<K, F, V> implements KeyObserver<K, F, V>, BulkDataLookup<K, F, V>, KeyLookup<K> {
     
     private final Map<Long, K> bitToKey = new HashMap<Long, K>();
     private final Map<F, Map<K, V>> store = new HashMap<F, Map<K, V>>();
@@ -48,6 +48,18 @@ public class PureMemoryJack<K, F, V> implements KeyObserver<K, F, V>, DataLookup
     public V lookup(K key, F field) {
         return storeMapFor(field).get(key);
     }
+    
+    @Override
+    public Map<K, V> lookupAll(Collection<K> keys, F field) {
+        Map<K, V> map = storeMapFor(field);
+        Map<K, V> found = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = map.get(key);
+            if (value != null)
+                found.put(key, value);
+        }
+        return found;
+    }
 
     @Override
     public Collection<K> toKeys(long[] bits) {
@@ -0,0 +1,179 @@
+package headwater.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A tree of (field, glob) and (field, regex) predicates joined with AND, OR and NOT, for
+ * StandardIndexReader.search(). Fields can differ from one predicate to the next; a key's bit is the same in every
+ * field, so the predicates are combined as bitmaps before any key is looked up.
+ *
+ * NOT can't be answered from the index (the bitmaps only say what might match), so it's only checked when values are
+ * verified. A query needs at least one positive predicate that every match has to satisfy.
+ *
+ * Queries are values: two trees built the same way are equal.
+ */
+public abstract class Query<F> {
+
+    private Query() {}
+
+    public static <F> Query<F> glob(F field, String glob) {
+        return new Predicate<F>(field, glob, false);
+    }
+
+    /** values that contain a match of a perl5 regex. */
+    public static <F> Query<F> regex(F field, String regex) {
+        return new Predicate<F>(field, regex, true);
+    }
+
+    // the operands are copied one at a time: the caller could still change the array, and handing the array itself
+    // to anything is what javac warns about.
+    @SafeVarargs
+    public static <F> Query<F> and(Query<F>... operands) {
+        List<Query<F>> copy = new ArrayList<Query<F>>(operands.length);
+        for (Query<F> operand : operands)
+            copy.add(operand);
+        return new And<F>(copy);
+    }
+
+    // copied like and().
+    @SafeVarargs
+    public static <F> Query<F> or(Query<F>... operands) {
+        List<Query<F>> copy = new ArrayList<Query<F>>(operands.length);
+        for (Query<F> operand : operands)
+            copy.add(operand);
+        return new Or<F>(copy);
+    }
+
+    public static <F> Query<F> not(Query<F> operand) {
+        return new Not<F>(operand);
+    }
+
+    public static class Predicate<F> extends Query<F> {
+        private final F field;
+        private final String pattern;
+        private final boolean regex;
+
+        private Predicate(F field, String pattern, boolean regex) {
+            this.field = field;
+            this.pattern = pattern;
+            this.regex = regex;
+        }
+
+        public F getField() {
+            return field;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        /** a perl5 regex (contains) rather than a glob (matches the whole value). */
+        public boolean isRegex() {
+            return regex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Predicate)) return false;
+            Predicate<?> other = (Predicate<?>)obj;
+            return regex == other.regex && pattern.equals(other.pattern) && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return (field.hashCode() * 31 + pattern.hashCode()) * 2 + (regex ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return field + (regex ? "~/" + pattern + "/" : "=" + pattern);
+        }
+    }
+
+    public static class And<F> extends Query<F> {
+        private final List<Query<F>> operands;
+
+        private And(List<Query<F>> operands) {
+            if (operands.size() == 0)
+                throw new IllegalArgumentException("AND needs at least one operand");
+            this.operands = Collections.unmodifiableList(operands);
+        }
+
+        public List<Query<F>> getOperands() {
+            return operands;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof And && operands.equals(((And<?>)obj).operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return operands.hashCode() * 3;
+        }
+
+        @Override
+        public String toString() {
+            return "AND" + operands;
+        }
+    }
+
+    public static class Or<F> extends Query<F> {
+        private final List<Query<F>> operands;
+
+        private Or(List<Query<F>> operands) {
+            if (operands.size() == 0)
+                throw new IllegalArgumentException("OR needs at least one operand");
+            this.operands = Collections.unmodifiableList(operands);
+        }
+
+        public List<Query<F>> getOperands() {
+            return operands;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Or && operands.equals(((Or<?>)obj).operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return operands.hashCode() * 5;
+        }
+
+        @Override
+        public String toString() {
+            return "OR" + operands;
+        }
+    }
+
+    public static class Not<F> extends Query<F> {
+        private final Query<F> operand;
+
+        private Not(Query<F> operand) {
+            this.operand = operand;
+        }
+
+        public Query<F> getOperand() {
+            return operand;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Not && operand.equals(((Not<?>)obj).operand);
+        }
+
+        @Override
+        public int hashCode() {
+            return operand.hashCode() * 7;
+        }
+
+        @Override
+        public String toString() {
+            return "NOT(" + operand + ")";
+        }
+    }
+}
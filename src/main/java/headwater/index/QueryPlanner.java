@@ -0,0 +1,274 @@
+package headwater.index;
+
+import com.google.common.primitives.UnsignedBytes;
+import headwater.hashing.Hashers;
+import headwater.trigram.AsciiAugmentationStrategy;
+import headwater.trigram.AugmentationStrategy;
+import headwater.trigram.NGrams;
+import headwater.trigram.Trigram;
+import headwater.trigram.TrigramExtractor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Turns a glob (or a regex, see RegexAnalyzer) into the index rows that need to be read. A plan is a list of terms
+ * that get intersected; each term is a union of one or more rows.
+ *
+ * Every literal fragment of the glob must appear in a match, so every gram in it is a valid filter. We don't need all
+ * of them though: "abcdef" is covered by (abc, def). For each fragment the planner uses the longest gram length the
+ * index has, picks the cheapest set of grams that covers it and orders all the terms by their estimated size so the
+ * rarest rows are read first. Fragments too short for any gram are only used (augmented into trigrams) when there is
+ * nothing better, since each one expands to a lot of rows.
+ */
+public class QueryPlanner<F> {
+
+    private RowStatistics statistics = new NullRowStatistics();
+    private AugmentationStrategy augmentationStrategy = new AsciiAugmentationStrategy();
+    private NGrams grams = NGrams.TRIGRAMS;
+
+    public QueryPlanner<F> withStatistics(RowStatistics statistics) {
+        this.statistics = statistics;
+        return this;
+    }
+
+    public QueryPlanner<F> withGrams(NGrams grams) {
+        this.grams = grams;
+        return this;
+    }
+
+    public QueryPlanner<F> withAugmentationStrategy(AugmentationStrategy augmentationStrategy) {
+        this.augmentationStrategy = augmentationStrategy;
+        return this;
+    }
+
+    public List<Term> plan(F field, String glob) {
+        List<Set<String>> clauses = new ArrayList<Set<String>>();
+        for (String fragment : literals(glob, grams.hasBoundaries()))
+            clauses.add(Collections.singleton(fragment));
+        return plan(field, clauses);
+    }
+
+    /** a plan for values that contain a match of a perl5 regex. See RegexAnalyzer. */
+    public List<Term> planRegex(F field, String regex) {
+        return plan(field, RegexAnalyzer.clauses(regex, grams.hasBoundaries()));
+    }
+
+    // every clause is a set of literals, at least one of which is in every match.
+    private List<Term> plan(F field, List<Set<String>> clauses) {
+        List<Term> terms = new ArrayList<Term>();
+        List<String> shortFragments = new ArrayList<String>();
+        Set<byte[]> planned = new TreeSet<byte[]>(UnsignedBytes.lexicographicalComparator());
+
+        for (Set<String> clause : clauses) {
+            if (clause.size() == 1) {
+                String fragment = usable(clause.iterator().next());
+                if (fragment.length() == 0)
+                    continue;
+                int length = grams.longestUpTo(fragment.codePointCount(0, fragment.length()));
+                if (length == 0) {
+                    shortFragments.add(fragment);
+                    continue;
+                }
+                TrigramExtractor extractor = new TrigramExtractor(length);
+                int count = extractor.extract(fragment);
+                for (byte[] rowKey : cover(field, length, extractor.getCodes(), count)) {
+                    if (planned.add(rowKey))
+                        terms.add(new Term(Collections.singletonList(rowKey), cost(rowKey)));
+                }
+            } else {
+                // one alternative has to be there, and so does every gram in it. the cheapest one will do.
+                List<byte[]> rowKeys = new ArrayList<byte[]>();
+                long estimate = 0;
+                for (String alternative : clause) {
+                    byte[] rowKey = cheapest(field, usable(alternative));
+                    if (rowKey == null) {
+                        // this alternative can't be looked up, so neither can the clause.
+                        rowKeys = null;
+                        break;
+                    }
+                    rowKeys.add(rowKey);
+                    estimate += cost(rowKey);
+                }
+                if (rowKeys != null)
+                    terms.add(new Term(rowKeys, estimate));
+            }
+        }
+
+        // augmentation makes trigrams, so it's no use to an index without them.
+        if (terms.size() == 0 && grams.has(Trigram.N)) {
+            for (String fragment : shortFragments) {
+                List<byte[]> rowKeys = new ArrayList<byte[]>();
+                long estimate = 0;
+                for (Trigram trigram : augmentationStrategy.augment(fragment)) {
+                    byte[] rowKey = Hashers.getIndexRowKey(field, trigram);
+                    rowKeys.add(rowKey);
+                    estimate += cost(rowKey);
+                }
+                if (rowKeys.size() > 0)
+                    terms.add(new Term(rowKeys, estimate));
+            }
+        }
+
+        Collections.sort(terms, new Comparator<Term>() {
+            public int compare(Term a, Term b) {
+                return Long.compare(a.estimate, b.estimate);
+            }
+        });
+        return terms;
+    }
+
+    // unknown rows all cost the same, which makes the cover the one with the fewest trigrams.
+    private long cost(byte[] rowKey) {
+        long estimate = statistics.estimate(rowKey);
+        return estimate == RowStatistics.UNKNOWN ? 1 : estimate + 1;
+    }
+
+    // sentinels are only indexed in grams of 2 or more.
+    private String usable(String fragment) {
+        if (grams.hasBoundaries() && grams.longestUpTo(fragment.codePointCount(0, fragment.length())) < 2)
+            return withoutSentinels(fragment);
+        return fragment;
+    }
+
+    // the cheapest single gram in fragment, or null if it's too short for any.
+    private byte[] cheapest(F field, String fragment) {
+        int length = grams.longestUpTo(fragment.codePointCount(0, fragment.length()));
+        if (fragment.length() == 0 || length == 0)
+            return null;
+        TrigramExtractor extractor = new TrigramExtractor(length);
+        int count = extractor.extract(fragment);
+        byte[] cheapest = null;
+        for (int start = 0; start < count; start++) {
+            byte[] rowKey = rowKey(field, length, extractor.getCodes(), count, start);
+            if (cheapest == null || cost(rowKey) < cost(cheapest))
+                cheapest = rowKey;
+        }
+        return cheapest;
+    }
+
+    // a window with a known successor can use the (smaller) row for grams followed by that successor.
+    private byte[] rowKey(F field, int n, long[] windows, int count, int start) {
+        if (grams.hasNextMasks() && start + 1 < count)
+            return Hashers.getNextMaskRowKey(field, n, windows[start], NGrams.nextBucket(NGrams.lastCodePoint(windows[start + 1], n)));
+        return Hashers.getIndexRowKey(field, n, windows[start]);
+    }
+
+    // windows[p] covers code points [p, p+n). best[e] is the cheapest set of windows covering [0, e) whose last window
+    // ends at e. returns the row keys of the chosen windows.
+    private List<byte[]> cover(F field, int n, long[] windows, int count) {
+        int length = count + n - 1;
+        byte[][] rowKeys = new byte[count][];
+        long[] best = new long[length + 1];
+        int[] previous = new int[length + 1];
+        for (int end = n; end <= length; end++) {
+            int start = end - n;
+            rowKeys[start] = rowKey(field, n, windows, count, start);
+            long cost = cost(rowKeys[start]);
+            if (start == 0) {
+                best[end] = cost;
+                previous[end] = 0;
+                continue;
+            }
+            best[end] = Long.MAX_VALUE;
+            for (int prior = Math.max(n, start); prior < end; prior++) {
+                if (best[prior] != Long.MAX_VALUE && best[prior] + cost < best[end]) {
+                    best[end] = best[prior] + cost;
+                    previous[end] = prior;
+                }
+            }
+        }
+
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        for (int end = length; end > 0; end = previous[end])
+            chosen.add(rowKeys[end - n]);
+        return chosen;
+    }
+
+    static List<String> literals(String glob) {
+        return literals(glob, false);
+    }
+
+    /**
+     * the literal runs of a glob: everything between wildcards and character classes. When bounded, a glob that doesn't
+     * start (end) with a wildcard is anchored, so its first (last) literal gets NGrams.START (END) tacked on.
+     */
+    static List<String> literals(String glob, boolean bounded) {
+        List<String> literals = new ArrayList<String>();
+        if (glob.length() == 0)
+            return literals;
+        StringBuilder sb = new StringBuilder();
+        boolean wildcardLast = false;
+        char first = glob.charAt(0);
+        if (bounded && first != '*' && first != '?' && first != '[')
+            sb.append(NGrams.START);
+        for (int i = 0; i < glob.length(); i++) {
+            char ch = glob.charAt(i);
+            wildcardLast = false;
+            if (ch == '\\' && i + 1 < glob.length()) {
+                sb.append(glob.charAt(++i));
+                continue;
+            }
+            if (ch == '*' || ch == '?' || ch == '[') {
+                wildcardLast = true;
+                if (sb.length() > 0)
+                    literals.add(sb.toString());
+                sb.setLength(0);
+                if (ch == '[') {
+                    // skip the class. a ']' right after the '[' (or '[!') is part of it.
+                    int close = i + 1;
+                    if (close < glob.length() && glob.charAt(close) == '!')
+                        close++;
+                    close = glob.indexOf(']', close + 1);
+                    i = close < 0 ? glob.length() : close;
+                }
+                continue;
+            }
+            sb.append(ch);
+        }
+        if (bounded && !wildcardLast)
+            sb.append(NGrams.END);
+        if (sb.length() > 0)
+            literals.add(sb.toString());
+        return literals;
+    }
+
+    /** a glob that matches literal and nothing else. */
+    public static String escape(String literal) {
+        StringBuilder sb = new StringBuilder(literal.length() + 4);
+        for (int i = 0; i < literal.length(); i++) {
+            char ch = literal.charAt(i);
+            if (ch == '*' || ch == '?' || ch == '[' || ch == ']' || ch == '\\')
+                sb.append('\\');
+            sb.append(ch);
+        }
+        return sb.toString();
+    }
+
+    private static String withoutSentinels(String fragment) {
+        return fragment.replace(String.valueOf(NGrams.START), "").replace(String.valueOf(NGrams.END), "");
+    }
+
+    public static class Term {
+        private final List<byte[]> rowKeys;
+        private final long estimate;
+
+        Term(List<byte[]> rowKeys, long estimate) {
+            this.rowKeys = rowKeys;
+            this.estimate = estimate;
+        }
+
+        /** rows to union. */
+        public List<byte[]> getRowKeys() {
+            return rowKeys;
+        }
+
+        public long getEstimate() {
+            return estimate;
+        }
+    }
+}
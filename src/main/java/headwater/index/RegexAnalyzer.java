@@ -0,0 +1,387 @@
+package headwater.index;
+
+import headwater.trigram.NGrams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Works out which literals a (perl5) regex needs a value to contain, as an AND of ORs: every value the regex finds
+ * something in contains at least one literal from each clause. "abc(de|fg)+x" needs {abcde, abcfg} and {x}.
+ *
+ * Each piece of the regex is summarized by the exact set of strings it matches when that set is small, otherwise by
+ * what its matches start and end with, plus the clauses that have been settled so far. Anything we don't understand
+ * (classes, backreferences, lookarounds) is treated as "could be anything", which only ever makes the answer weaker,
+ * never wrong. Case insensitive flags are refused since they'd make every literal wrong.
+ */
+class RegexAnalyzer {
+    private static final int MAX_EXACT = 16;
+    private static final int MAX_CLAUSES = 16;
+    private static final int MAX_CLASS = 8;
+
+    private final String regex;
+    private final boolean bounded;
+    private int pos = 0;
+
+    private RegexAnalyzer(String regex, boolean bounded) {
+        this.regex = regex;
+        this.bounded = bounded;
+    }
+
+    /** the clauses for regex. When bounded, ^ and $ become NGrams.START and END. */
+    static List<Set<String>> clauses(String regex, boolean bounded) {
+        RegexAnalyzer analyzer = new RegexAnalyzer(regex, bounded);
+        Info info = analyzer.alternation();
+        if (analyzer.pos < regex.length())
+            throw new IllegalArgumentException("unbalanced ')' in " + regex);
+        return info.all();
+    }
+
+    private Info alternation() {
+        Info info = concatenation();
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            info = or(info, concatenation());
+        }
+        return info;
+    }
+
+    private Info concatenation() {
+        Info info = Info.exactly("");
+        while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')')
+            info = and(info, repetition());
+        return info;
+    }
+
+    private Info repetition() {
+        Info info = atom();
+        while (pos < regex.length()) {
+            char ch = regex.charAt(pos);
+            int min, max;
+            if (ch == '*') {
+                min = 0;
+                max = -1;
+                pos++;
+            } else if (ch == '+') {
+                min = 1;
+                max = -1;
+                pos++;
+            } else if (ch == '?') {
+                min = 0;
+                max = 1;
+                pos++;
+            } else if (ch == '{' && isQuantifier(pos)) {
+                int close = regex.indexOf('}', pos);
+                String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+                min = Integer.parseInt(bounds[0]);
+                max = bounds.length == 1 ? min : bounds[1].length() == 0 ? -1 : Integer.parseInt(bounds[1]);
+                pos = close + 1;
+            } else
+                break;
+            // lazy and possessive versions match the same strings.
+            if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+'))
+                pos++;
+            info = repeat(info, min, max);
+        }
+        return info;
+    }
+
+    // max < 0 is unbounded.
+    private static Info repeat(Info info, int min, int max) {
+        if (min == 0 && max == 1)
+            return info.exact == null ? Info.anything() : Info.exactly(union(info.exact, Info.EMPTY));
+        if (min == 0)
+            return Info.anything();
+        if (min > MAX_EXACT)
+            return Info.requiring(info.all());
+        // the first min copies are side by side. after that we don't know what comes next.
+        Info repeated = info;
+        for (int i = 1; i < min; i++)
+            repeated = and(repeated, info);
+        return max == min ? repeated : and(repeated, Info.anything());
+    }
+
+    private boolean isQuantifier(int at) {
+        int close = regex.indexOf('}', at);
+        return close > at + 1 && regex.substring(at + 1, close).matches("\\d+(,\\d*)?");
+    }
+
+    private Info atom() {
+        char ch = regex.charAt(pos++);
+        switch (ch) {
+            case '(':
+                return group();
+            case '[':
+                return characterClass();
+            case '.':
+                return Info.anything();
+            case '^':
+                return Info.exactly(bounded ? String.valueOf(NGrams.START) : "");
+            case '$':
+                return end(true);
+            case '\\':
+                return escape();
+            default:
+                if (Character.isHighSurrogate(ch) && pos < regex.length() && Character.isLowSurrogate(regex.charAt(pos)))
+                    return Info.exactly(new String(new char[] {ch, regex.charAt(pos++)}));
+                return Info.exactly(String.valueOf(ch));
+        }
+    }
+
+    private Info group() {
+        boolean lookaround = false;
+        if (regex.startsWith("?:", pos))
+            pos += 2;
+        else if (regex.startsWith("?=", pos) || regex.startsWith("?!", pos)) {
+            pos += 2;
+            lookaround = true;
+        } else if (regex.startsWith("?<=", pos) || regex.startsWith("?<!", pos)) {
+            pos += 3;
+            lookaround = true;
+        } else if (pos < regex.length() && regex.charAt(pos) == '?')
+            throw new IllegalArgumentException("regex flags can't be searched in the index: " + regex);
+        Info info = alternation();
+        if (pos >= regex.length() || regex.charAt(pos) != ')')
+            throw new IllegalArgumentException("missing ')' in " + regex);
+        pos++;
+        return lookaround ? Info.anything() : info;
+    }
+
+    // small classes of plain characters are exact. everything else could be anything.
+    private Info characterClass() {
+        Set<String> chars = new HashSet<String>();
+        boolean exact = true;
+        if (pos < regex.length() && regex.charAt(pos) == '^') {
+            exact = false;
+            pos++;
+        }
+        // a ']' right after the '[' is part of the class.
+        boolean first = true;
+        while (pos < regex.length() && (first || regex.charAt(pos) != ']')) {
+            first = false;
+            char ch = regex.charAt(pos++);
+            if (ch == '\\' && pos < regex.length()) {
+                char escaped = regex.charAt(pos++);
+                if (Character.isLetterOrDigit(escaped))
+                    exact = false;
+                else
+                    chars.add(String.valueOf(escaped));
+            } else if (ch == '[' && pos < regex.length() && regex.charAt(pos) == ':') {
+                // posix class.
+                int close = regex.indexOf(":]", pos);
+                pos = close < 0 ? regex.length() : close + 2;
+                exact = false;
+            } else if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                char last = regex.charAt(pos + 1);
+                pos += 2;
+                if (last - ch >= MAX_CLASS)
+                    exact = false;
+                else
+                    for (char c = ch; c <= last; c++)
+                        chars.add(String.valueOf(c));
+            } else
+                chars.add(String.valueOf(ch));
+        }
+        pos++;
+        return exact && chars.size() <= MAX_CLASS ? Info.exactly(chars) : Info.anything();
+    }
+
+    // everything after a '\\', which may be more than one char.
+    private Info escape() {
+        if (pos >= regex.length())
+            return Info.exactly("\\");
+        char ch = regex.charAt(pos++);
+        switch (ch) {
+            case 'n':
+                return Info.exactly("\n");
+            case 't':
+                return Info.exactly("\t");
+            case 'r':
+                return Info.exactly("\r");
+            case 'f':
+                return Info.exactly("\f");
+            case 'e':
+                return Info.exactly("\u001b");
+            case 'b':
+            case 'B':
+            case 'A':
+            case 'G':
+                return Info.exactly(""); // zero width.
+            case 'Z':
+                return end(true);
+            case 'z':
+                return end(false);
+            case '0': {
+                // octal: \0 and up to two more digits.
+                int start = pos;
+                while (pos < regex.length() && pos < start + 2 && regex.charAt(pos) >= '0' && regex.charAt(pos) <= '7')
+                    pos++;
+                int octal = start == pos ? 0 : Integer.parseInt(regex.substring(start, pos), 8);
+                return Info.exactly(String.valueOf((char)octal));
+            }
+            case 'c':
+                // a control char: \cJ (or \cj) is a newline.
+                if (pos < regex.length())
+                    return Info.exactly(String.valueOf((char)(Character.toUpperCase(regex.charAt(pos++)) ^ 64)));
+                return Info.anything();
+            case 'x': {
+                if (pos < regex.length() && regex.charAt(pos) == '{') {
+                    // not a code point to ORO. whatever it is, it ends at the '}'.
+                    int close = regex.indexOf('}', pos);
+                    pos = close < 0 ? regex.length() : close + 1;
+                    return Info.anything();
+                }
+                // one or two hex digits.
+                int start = pos;
+                while (pos < regex.length() && pos < start + 2 && Character.digit(regex.charAt(pos), 16) >= 0)
+                    pos++;
+                if (start == pos)
+                    return Info.anything();
+                return Info.exactly(String.valueOf((char)Integer.parseInt(regex.substring(start, pos), 16)));
+            }
+            default:
+                if (ch >= '1' && ch <= '9') {
+                    // a backreference, or octal when there aren't that many groups. either way, all of the digits.
+                    while (pos < regex.length() && Character.isDigit(regex.charAt(pos)))
+                        pos++;
+                    return Info.anything();
+                }
+                // \d, \w and friends.
+                return Character.isLetterOrDigit(ch) ? Info.anything() : Info.exactly(String.valueOf(ch));
+        }
+    }
+
+    // $ and \Z also match right before a newline at the very end. \z doesn't.
+    private Info end(boolean beforeNewline) {
+        if (!bounded)
+            return Info.exactly("");
+        Set<String> ends = new HashSet<String>();
+        ends.add(String.valueOf(NGrams.END));
+        if (beforeNewline)
+            ends.add("\n" + NGrams.END);
+        return Info.exactly(ends);
+    }
+
+    // a followed by b.
+    private static Info and(Info a, Info b) {
+        Info info = new Info();
+        info.required.addAll(a.required);
+        info.required.addAll(b.required);
+        Set<String> product = a.exact != null && b.exact != null ? cross(a.exact, b.exact) : null;
+        if (product != null)
+            return info.exact(product);
+        if (a.exact == null && b.exact == null) {
+            // the seam isn't part of the new prefix or suffix, so it's settled now.
+            Set<String> seam = cross(a.suffix, b.prefix);
+            if (seam != null)
+                addClause(info.required, seam);
+            else {
+                addClause(info.required, a.suffix);
+                addClause(info.required, b.prefix);
+            }
+        }
+        // when a is exact, whatever b starts with is still next to it. same for the end.
+        info.prefix = a.exact == null ? a.prefix : crossOrSettle(a.exact, b.prefix, info.required, false);
+        info.suffix = b.exact == null ? b.suffix : crossOrSettle(a.suffix, b.exact, info.required, true);
+        return info;
+    }
+
+    // a or b: one clause from each side, OR'd together.
+    private static Info or(Info a, Info b) {
+        if (a.exact != null && b.exact != null && a.exact.size() + b.exact.size() <= MAX_EXACT)
+            return Info.exactly(union(a.exact, b.exact));
+        Info info = new Info();
+        info.prefix = union(a.prefix, b.prefix);
+        info.suffix = union(a.suffix, b.suffix);
+        if (info.prefix.size() > MAX_EXACT)
+            info.prefix = Info.EMPTY;
+        if (info.suffix.size() > MAX_EXACT)
+            info.suffix = Info.EMPTY;
+        for (Set<String> x : a.all()) {
+            for (Set<String> y : b.all()) {
+                if (info.required.size() == MAX_CLAUSES)
+                    return info;
+                info.required.add(union(x, y));
+            }
+        }
+        return info;
+    }
+
+    // every x followed by every y, or null if there'd be too many.
+    private static Set<String> cross(Set<String> xs, Set<String> ys) {
+        if (xs.size() * ys.size() > MAX_EXACT)
+            return null;
+        Set<String> product = new HashSet<String>();
+        for (String x : xs)
+            for (String y : ys)
+                product.add(x + y);
+        return product;
+    }
+
+    // cross(xs, ys), or if that's too big, keep the side that stays at the edge and settle the other one.
+    private static Set<String> crossOrSettle(Set<String> xs, Set<String> ys, List<Set<String>> required, boolean keepYs) {
+        Set<String> product = cross(xs, ys);
+        if (product != null)
+            return product;
+        addClause(required, keepYs ? xs : ys);
+        return keepYs ? ys : xs;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> union = new HashSet<String>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    // a clause with "" in it is always satisfied, so it's not worth keeping.
+    private static void addClause(List<Set<String>> clauses, Set<String> clause) {
+        if (!clause.contains("") && !clauses.contains(clause))
+            clauses.add(clause);
+    }
+
+    private static class Info {
+        private static final Set<String> EMPTY = Collections.singleton("");
+
+        // every string this matches, or null if we don't know (or there are too many).
+        private Set<String> exact = null;
+        // every match starts with one of prefix and ends with one of suffix.
+        private Set<String> prefix = EMPTY;
+        private Set<String> suffix = EMPTY;
+        private final List<Set<String>> required = new ArrayList<Set<String>>();
+
+        static Info exactly(String s) {
+            return exactly(Collections.singleton(s));
+        }
+
+        static Info exactly(Set<String> strings) {
+            return new Info().exact(new HashSet<String>(strings));
+        }
+
+        static Info anything() {
+            return new Info();
+        }
+
+        static Info requiring(List<Set<String>> clauses) {
+            Info info = new Info();
+            info.required.addAll(clauses);
+            return info;
+        }
+
+        private Info exact(Set<String> strings) {
+            exact = strings;
+            prefix = strings;
+            suffix = strings;
+            return this;
+        }
+
+        List<Set<String>> all() {
+            List<Set<String>> all = new ArrayList<Set<String>>(required);
+            addClause(all, prefix);
+            addClause(all, suffix);
+            return all;
+        }
+    }
+}
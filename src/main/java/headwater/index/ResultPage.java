@@ -0,0 +1,49 @@
+package headwater.index;
+
+import java.util.List;
+
+/** one page of results, and where the next one starts (null after the last page). */
+public class ResultPage<K> {
+    private final List<K> keys;
+    private final Position next;
+
+    ResultPage(List<K> keys, Position next) {
+        this.keys = keys;
+        this.next = next;
+    }
+
+    public List<K> getKeys() {
+        return keys;
+    }
+
+    public Position getNext() {
+        return next;
+    }
+
+    /**
+     * where a search picks up again: the segment the last page ended in, and how many of that segment's results it
+     * already returned. Only the rest of that segment gets verified again.
+     */
+    public static class Position {
+        private final long segment;
+        private final int skip;
+
+        public Position(long segment, int skip) {
+            this.segment = segment;
+            this.skip = skip;
+        }
+
+        public long getSegment() {
+            return segment;
+        }
+
+        public int getSkip() {
+            return skip;
+        }
+
+        @Override
+        public String toString() {
+            return segment + ":" + skip;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package headwater.index;
+
+/**
+ * Per-row counts used to estimate how selective an index row is. The writer reports every bit that goes from 0 to 1
+ * and the query planner uses the estimates to decide which rows to read, and in what order.
+ */
+public interface RowStatistics {
+    public static final long UNKNOWN = -1;
+    
+    /** a bit in this row went from 0 to 1. */
+    public void increment(byte[] rowKey);
+    
+    /** about how many bits are asserted in the row, or UNKNOWN. */
+    public long estimate(byte[] rowKey);
+}
@@ -1,37 +1,49 @@
 package headwater.index;
 
-import com.google.common.collect.Sets;
-import headwater.Utils;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import headwater.bitmap.IBitmap;
-import headwater.hashing.Hashers;
+import headwater.io.BulkIO;
 import headwater.io.ColumnObserver;
 import headwater.io.IO;
 import headwater.io.MemoryBitmapIO;
-import headwater.trigram.AsciiAugmentationStrategy;
-import headwater.trigram.AugmentationStrategy;
-import headwater.trigram.Trigram;
-import org.apache.oro.text.GlobCompiler;
-import org.apache.oro.text.regex.MalformedPatternException;
-import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.PatternMatcher;
-import org.apache.oro.text.regex.Perl5Matcher;
+import headwater.trigram.NGrams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOError;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class StandardIndexReader<K, F> implements IndexReader<K, F, String> {
     private static final Logger log = LoggerFactory.getLogger(StandardIndexReader.class);
     
+    private static final int BULK_PAGE_SIZE = 256;
+    private static final int VERIFY_BATCH_SIZE = 256;
+    
     private IO<Long, IBitmap> io;
     private final int segmentBitLength;
     private DataLookup<K, F, String> dataLookup;
     private KeyLookup<K> keyLookup;
+    private final QueryPlanner<F> planner = new QueryPlanner<F>();
+    private PlanCache<F> plans = new PlanCache<F>(planner, PlanCache.DEFAULT_SIZE);
+    private ForkJoinPool pool = null;
+    private int verifyBatchSize = VERIFY_BATCH_SIZE;
     
     public StandardIndexReader(int segmentBitLength) {
         this.segmentBitLength = segmentBitLength;
@@ -48,59 +60,220 @@ public class StandardIndexReader<K, F> implements IndexReader<K, F, String> {
         return this;
     }
     
+    /** estimates used to plan queries. Use the same instance the writer was given. */
+    public StandardIndexReader<K, F> withStatistics(RowStatistics statistics) {
+        planner.withStatistics(statistics);
+        plans.invalidateAll();
+        return this;
+    }
+    
+    /** must be the same gram lengths the index was written with. */
+    public StandardIndexReader<K, F> withGrams(NGrams grams) {
+        planner.withGrams(grams);
+        plans.invalidateAll();
+        return this;
+    }
+    
     public StandardIndexReader<K, F> withKeyLookup(KeyLookup<K> lookup) {
         this.keyLookup = lookup;
         return this;
     }
     
-    // todo: consider the query string "*abcdef*". Right now we are intersecting all the trigrams (abc, bcd, cde, def).
-    // but we could get away with intersecing (abc, def) and have the same results.
+    /**
+     * reads the rows of a union, and evaluates each range of BULK_PAGE_SIZE segments, as separate tasks on pool. Only
+     * pays off with a BulkIO (which is what lets a range be read on its own) that's safe to use from several threads.
+     * Candidates are verified a batch per task too, so the DataLookup has to be thread safe as well. Without a pool
+     * (the default), queries run on the caller's thread.
+     */
+    public StandardIndexReader<K, F> withParallelism(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+    
+    /**
+     * how many planned queries (keyed by field and query) are kept. Repeating a query skips planning it and compiling
+     * its matcher. Plans expire after a minute so they follow the statistics. 0 turns the cache off.
+     */
+    public StandardIndexReader<K, F> withPlanCacheSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size can't be negative");
+        this.plans = new PlanCache<F>(planner, size);
+        return this;
+    }
+    
+    /** how many candidates are looked up at once, with one lookupAll() call if the DataLookup is a BulkDataLookup. */
+    public StandardIndexReader<K, F> withVerifyBatchSize(int verifyBatchSize) {
+        if (verifyBatchSize < 1)
+            throw new IllegalArgumentException("verifyBatchSize must be positive");
+        this.verifyBatchSize = verifyBatchSize;
+        return this;
+    }
+    
     public Collection<K> globSearch(F field, String valueQuery) {
-        long queryStart = System.currentTimeMillis();
-        String[] parcels = valueQuery.split("\\*", 0);
-        Set<Long> candidateBits = null;
-        for (final String parcel : parcels) {
-            if (parcel == null || parcel.length() == 0) continue;
-            
-            long[] hits = trigramSearch(field, parcel, new AsciiAugmentationStrategy());
-            
-            // update candidates.
-            if (candidateBits == null)
-                candidateBits = Utils.hashSetFrom(hits);
-            else
-                candidateBits = Sets.intersection(candidateBits, Utils.hashSetFrom(hits));
-            
-            // if there are no candidates, subsequent intersections with the null set will return the null set.
-            if (candidateBits.size() == 0)
-                break;
+        PlanCache.Planned planned = plans.glob(field, valueQuery);
+        return search(field, planned.getPlan(), planned.getMatcher());
+    }
+    
+    /**
+     * one page of globSearch(), in index order. Every earlier page is read and verified again to skip past it, so
+     * use globPage() to go through many pages.
+     */
+    public List<K> globSearch(F field, String valueQuery, int offset, int limit) {
+        Iterator<K> results = globIterator(field, valueQuery);
+        Iterators.advance(results, offset);
+        return Lists.newArrayList(Iterators.limit(results, limit));
+    }
+    
+    /**
+     * one page of globSearch(), in index order, starting at a position a previous page returned (null for the first
+     * page). Reading starts at that position, so a page costs the same wherever it is. Positions stay good as long as
+     * the index doesn't change.
+     */
+    public ResultPage<K> globPage(F field, String valueQuery, ResultPage.Position from, int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("limit must be positive");
+        PlanCache.Planned planned = lookupPlan(field, valueQuery);
+        LazyResults results = new LazyResults(field, planned.getPlan(), planned.getMatcher(), from);
+        List<K> keys = Lists.newArrayList(Iterators.limit(results, limit));
+        ResultPage.Position next = results.position();
+        return new ResultPage<K>(keys, results.hasNext() ? next : null);
+    }
+    
+    /**
+     * how many values match. Verified counts look every candidate up but never keep the keys. Unverified counts come
+     * straight from the bitmaps without any lookups at all; they're the number of candidates, so they're never less
+     * than the real count (unless keys share a bit, which is as likely as any other hash collision). A glob with
+     * nothing to look up (like "*") gets an IllegalArgumentException either way, as regexSearch() does.
+     */
+    public long globCount(F field, String valueQuery, boolean verified) {
+        if (!verified)
+            return candidates(lookupPlan(field, valueQuery).getPlan(), null).cardinality();
+        long count = 0;
+        for (Iterator<K> results = globIterator(field, valueQuery); results.hasNext(); results.next())
+            count += 1;
+        return count;
+    }
+    
+    /** whether anything matches. stops at the first verified match. Same IllegalArgumentException as globCount(). */
+    public boolean globExists(F field, String valueQuery) {
+        return globIterator(field, valueQuery).hasNext();
+    }
+    
+    /**
+     * globSearch() results, found as they're asked for. With a BulkIO every row is read a page of segments at a time
+     * (the rarest term's rows first, then the rest only where those left candidates) and candidates are verified one
+     * at a time, so stopping early saves the rest of the rows and lookups. Other IOs have to read all the rows up
+     * front. Results come in segment order, so pages are stable as long as the index doesn't change. Globs with
+     * nothing to look up get an IllegalArgumentException rather than a full scan.
+     */
+    public Iterator<K> globIterator(F field, String valueQuery) {
+        PlanCache.Planned planned = lookupPlan(field, valueQuery);
+        return new LazyResults(field, planned.getPlan(), planned.getMatcher(), null);
+    }
+    
+    // a glob plan that reads at least one row.
+    private PlanCache.Planned lookupPlan(F field, String valueQuery) {
+        PlanCache.Planned planned = plans.glob(field, valueQuery);
+        if (planned.getPlan().size() == 0)
+            throw new IllegalArgumentException("nothing in " + valueQuery + " can be looked up in the index");
+        return planned;
+    }
+    
+    /**
+     * values that contain a match of a perl5 regex. The plan comes from the literals every match has to contain (see
+     * RegexAnalyzer), so there needs to be at least one that the index can look up; ".*" or "\\d+" alone get an
+     * IllegalArgumentException rather than a full scan.
+     */
+    public Collection<K> regexSearch(F field, String regex) {
+        PlanCache.Planned planned = plans.regex(field, regex);
+        if (planned.getPlan().size() == 0)
+            throw new IllegalArgumentException("nothing in " + regex + " can be looked up in the index");
+        return search(field, planned.getPlan(), planned.getMatcher());
+    }
+    
+    /**
+     * keys whose values satisfy a tree of predicates over any number of fields (see Query). The cheapest operands of
+     * an AND are read first and only where earlier ones left candidates, and an AND stops as soon as it's empty. The
+     * survivors are verified once against the whole tree, in batches like globSearch(): with a BulkDataLookup every
+     * field the tree reads is fetched with one lookupAll() per batch, otherwise each (key, field) value is looked up
+     * at most once, and only if it's needed.
+     */
+    public Collection<K> search(final Query<F> query) {
+        final QueryEvaluation evaluation = new QueryEvaluation();
+        CandidateSet candidates = evaluation.candidates(query, null);
+        if (candidates == null)
+            throw new IllegalArgumentException("nothing in " + query + " can be looked up in the index");
+        if (candidates.isEmpty())
+            return new ArrayList<K>();
+        
+        // plans every predicate (NOTs too), so verifying only ever reads them.
+        final Set<F> fields = evaluation.fields(query);
+        List<K> keyCandidates = new ArrayList<K>(new LinkedHashSet<K>(keyLookup.toKeys(candidates.toBits())));
+        return verifyAll(keyCandidates, new Verifier<K>() {
+            public List<K> verify(List<K> batch) {
+                Map<K, Map<F, String>> values = lookupAll(batch, fields);
+                List<K> results = new ArrayList<K>();
+                for (K key : batch) {
+                    if (evaluation.matches(query, key, values.get(key)))
+                        results.add(key);
+                }
+                return results;
+            }
+        });
+    }
+    
+    /**
+     * every row the predicates in query are planned to read, NOTs included. null if one of them has an empty plan,
+     * since what that predicate matches doesn't depend on any row.
+     */
+    List<byte[]> rowKeys(Query<F> query) {
+        List<byte[]> rowKeys = new ArrayList<byte[]>();
+        return addRowKeys(query, rowKeys) ? rowKeys : null;
+    }
+    
+    private boolean addRowKeys(Query<F> query, List<byte[]> rowKeys) {
+        if (query instanceof Query.Predicate) {
+            Query.Predicate<F> predicate = (Query.Predicate<F>)query;
+            PlanCache.Planned planned = predicate.isRegex()
+                    ? plans.regex(predicate.getField(), predicate.getPattern())
+                    : plans.glob(predicate.getField(), predicate.getPattern());
+            for (QueryPlanner.Term term : planned.getPlan())
+                rowKeys.addAll(term.getRowKeys());
+            return planned.getPlan().size() > 0;
         }
+        if (query instanceof Query.Not)
+            return addRowKeys(((Query.Not<F>)query).getOperand(), rowKeys);
+        List<Query<F>> operands = query instanceof Query.And
+                ? ((Query.And<F>)query).getOperands()
+                : ((Query.Or<F>)query).getOperands();
+        for (Query<F> operand : operands)
+            if (!addRowKeys(operand, rowKeys))
+                return false;
+        return true;
+    }
+    
+    private Collection<K> search(final F field, List<QueryPlanner.Term> plan, final ValueMatcher matcher) {
+        long queryStart = System.currentTimeMillis();
+        CandidateSet candidates = candidates(plan, null);
         long queryEnd = System.currentTimeMillis();
         
         List<K> results = new ArrayList<K>();
         
-        if (candidateBits == null)
+        if (candidates == null || candidates.isEmpty())
             return results; // nothing.
         
-        Set<K> keyCandidates = new HashSet<K>(keyLookup.toKeys(Utils.unbox(candidateBits.toArray(new Long[candidateBits.size()]))));
+        // bits only become keys once all the bitmap work is done.
+        List<K> keyCandidates = new ArrayList<K>(new LinkedHashSet<K>(keyLookup.toKeys(candidates.toBits())));
         
         // the candidates may or may not match. the whole point of the bitmap index is to whittle that question down
         // to candidates that we can run the regex against on a single machine.  This is what we do now.
 
         long pareStart = System.currentTimeMillis();
-        GlobCompiler gc = new GlobCompiler();
-        Pattern pattern = null;
-        try {
-            pattern = gc.compile(valueQuery);
-        } catch (MalformedPatternException ex) {
-            throw new IOError(ex);
-        }
-        PatternMatcher matcher = new Perl5Matcher();
-        
-        for (K key: keyCandidates) {
-            String value = dataLookup.lookup(key, field);
-            if (value != null && matcher.matches(value, pattern))
-                results.add(key);
-        }
+        results = verifyAll(keyCandidates, new Verifier<K>() {
+            public List<K> verify(List<K> batch) {
+                return StandardIndexReader.this.verify(field, batch, matcher);
+            }
+        });
         long pareEnd = System.currentTimeMillis();
 
 //        System.out.println(String.format("c:%d q:%d p:%d", keyCandidates.size(), queryEnd-queryStart, pareEnd-pareStart));
@@ -108,20 +281,64 @@ public class StandardIndexReader<K, F> implements IndexReader<K, F, String> {
         return results;
     }
     
+    // the intersection of the plan's terms, or null for an empty plan (which rules nothing out). when within is given,
+    // only its segments get read.
+    private CandidateSet candidates(List<QueryPlanner.Term> plan, CandidateSet within) {
+        if (pool != null && io instanceof BulkIO && plan.size() > 0) {
+            if (within != null)
+                return pool.invoke(new RangeSearch(new ArrayList<Long>(within.getSegments()), null, plan));
+            CandidateSet first = pool.invoke(new RowUnion(plan.get(0).getRowKeys()));
+            if (plan.size() == 1 || first.isEmpty())
+                return first;
+            return pool.invoke(new RangeSearch(new ArrayList<Long>(first.getSegments()), first, plan.subList(1, plan.size())));
+        }
+        CandidateSet candidates = null;
+        // rarest terms come first, so the candidates shrink as fast as possible.
+        for (QueryPlanner.Term term : plan) {
+            // once we have candidates, rows only need to be read where they could still intersect.
+            CandidateSet bound = candidates != null ? candidates : within;
+            CandidateSet hits = bound != null && io instanceof BulkIO
+                    ? segmentSearch(term.getRowKeys(), bound.getSegments())
+                    : rowSearch(term.getRowKeys());
+            
+            // update candidates, one segment at a time.
+            if (candidates == null)
+                candidates = hits;
+            else
+                candidates.and(hits);
+            
+            // if there are no candidates, subsequent intersections with the null set will return the null set.
+            if (candidates.isEmpty())
+                break;
+        }
+        return candidates;
+    }
+    
+    /**
+     * values that start with prefix, taken literally. With boundaries on (see NGrams.withBoundaries()) only the rows
+     * for the start of values are read, so this is cheap enough for autocomplete.
+     */
+    public Collection<K> prefixSearch(F field, String prefix) {
+        return globSearch(field, QueryPlanner.escape(prefix) + "*");
+    }
+    
+    /** values that end with suffix, taken literally. */
+    public Collection<K> suffixSearch(F field, String suffix) {
+        return globSearch(field, "*" + QueryPlanner.escape(suffix));
+    }
+    
     // *c*b* -> .*c.*b.*
     
-    private long[] trigramSearch(F field, String parcel, AugmentationStrategy augmentationStrategy) {
-        final Set<Long> candidates = new HashSet<Long>();
+    // union of the rows.
+    private CandidateSet rowSearch(List<byte[]> rowKeys) {
+        final CandidateSet candidates = new CandidateSet(segmentBitLength);
         final UnsafeCounter colCount = new UnsafeCounter();
-        for (Trigram trigram :Trigram.makeNonOverlapping(parcel, augmentationStrategy)) {
-            final byte[] indexKey = Hashers.computeIndexRowKey(field, trigram);
+        for (byte[] indexKey : rowKeys) {
             try {
                 io.visitAllColumns(indexKey, 64, new ColumnObserver<Long, IBitmap>() {
                     public void observe(byte[] row, Long segment, IBitmap value) {
                         colCount.inc();
-                        long[] assertedInSegment = value.getAsserted();
-                        for (long l : assertedInSegment)
-                            candidates.add(segment * segmentBitLength + l);
+                        candidates.or(segment, value);
                     }
                 });
             } catch (Exception ex) {
@@ -129,7 +346,419 @@ public class StandardIndexReader<K, F> implements IndexReader<K, F, String> {
             }
         }
 //        System.out.println(String.format("cols: %d", colCount.count));
-        return Utils.unbox(candidates.toArray(new Long[candidates.size()]));
+        return candidates;
+    }
+    
+    // union of the rows, but only the given segments are read.
+    private CandidateSet segmentSearch(List<byte[]> rowKeys, Collection<Long> segments) {
+        CandidateSet candidates = new CandidateSet(segmentBitLength);
+        @SuppressWarnings("unchecked") BulkIO<Long, IBitmap> bulkIO = (BulkIO<Long, IBitmap>)io;
+        for (byte[] indexKey : rowKeys) {
+            for (List<Long> page : Iterables.partition(segments, BULK_PAGE_SIZE)) {
+                try {
+                    for (Map.Entry<Long, IBitmap> entry : bulkIO.bulkGet(indexKey, page).entrySet())
+                        candidates.or(entry.getKey(), entry.getValue());
+                } catch (Exception ex) {
+                    throw new IOError(ex);
+                }
+            }
+        }
+        return candidates;
+    }
+    
+    // verifies candidates a batch at a time, each batch as a task on the pool if there is one. results keep their order.
+    private List<K> verifyAll(List<K> candidates, Verifier<K> verifier) {
+        List<List<K>> batches = Lists.partition(candidates, verifyBatchSize);
+        if (pool != null && batches.size() > 1)
+            return pool.invoke(new Verification(batches, verifier));
+        List<K> results = new ArrayList<K>();
+        for (List<K> batch : batches)
+            results.addAll(verifier.verify(batch));
+        return results;
+    }
+    
+    // for each key, the values of fields that have been looked up so far. that's all of them with a BulkDataLookup
+    // (one lookupAll() per field), and none otherwise, so they only get looked up if they're needed.
+    private Map<K, Map<F, String>> lookupAll(List<K> batch, Set<F> fields) {
+        Map<K, Map<F, String>> values = new HashMap<K, Map<F, String>>();
+        for (K key : batch)
+            values.put(key, new HashMap<F, String>());
+        if (!(dataLookup instanceof BulkDataLookup))
+            return values;
+        for (F field : fields) {
+            Map<K, String> found = ((BulkDataLookup<K, F, String>)dataLookup).lookupAll(batch, field);
+            for (K key : batch)
+                values.get(key).put(field, found.get(key));
+        }
+        return values;
+    }
+    
+    // the keys in batch whose values match.
+    private List<K> verify(F field, List<K> batch, ValueMatcher matcher) {
+        Map<K, String> values;
+        if (dataLookup instanceof BulkDataLookup)
+            values = ((BulkDataLookup<K, F, String>)dataLookup).lookupAll(batch, field);
+        else {
+            values = new HashMap<K, String>();
+            for (K key : batch)
+                values.put(key, dataLookup.lookup(key, field));
+        }
+        List<K> results = new ArrayList<K>();
+        for (K key : batch) {
+            String value = values.get(key);
+            if (value != null && matcher.matches(value))
+                results.add(key);
+        }
+        return results;
+    }
+    
+    // the matching keys of one batch of candidates.
+    private interface Verifier<K> {
+        List<K> verify(List<K> batch);
+    }
+    
+    // verifies batches of candidates, a batch per task. results keep the order of the batches.
+    @SuppressWarnings("serial")
+    private class Verification extends RecursiveTask<List<K>> {
+        private final List<List<K>> batches;
+        private final Verifier<K> verifier;
+        
+        Verification(List<List<K>> batches, Verifier<K> verifier) {
+            this.batches = batches;
+            this.verifier = verifier;
+        }
+        
+        @Override
+        protected List<K> compute() {
+            if (batches.size() == 1)
+                return verifier.verify(batches.get(0));
+            int middle = batches.size() / 2;
+            Verification right = new Verification(batches.subList(middle, batches.size()), verifier);
+            right.fork();
+            List<K> results = new Verification(batches.subList(0, middle), verifier).compute();
+            results.addAll(right.join());
+            return results;
+        }
+    }
+    
+    // the union of some rows, split up by row.
+    @SuppressWarnings("serial")
+    private class RowUnion extends RecursiveTask<CandidateSet> {
+        private final List<byte[]> rowKeys;
+        
+        RowUnion(List<byte[]> rowKeys) {
+            this.rowKeys = rowKeys;
+        }
+        
+        @Override
+        protected CandidateSet compute() {
+            if (rowKeys.size() <= 1)
+                return rowSearch(rowKeys);
+            int middle = rowKeys.size() / 2;
+            RowUnion right = new RowUnion(rowKeys.subList(middle, rowKeys.size()));
+            right.fork();
+            CandidateSet candidates = new RowUnion(rowKeys.subList(0, middle)).compute();
+            candidates.absorb(right.join());
+            return candidates;
+        }
+    }
+    
+    // the intersection of terms over some segments, split up into ranges of segments. start (if there is one) is
+    // what's known already, and the result is intersected with it.
+    @SuppressWarnings("serial")
+    private class RangeSearch extends RecursiveTask<CandidateSet> {
+        private final List<Long> segments;
+        private final CandidateSet start;
+        private final List<QueryPlanner.Term> terms;
+        
+        RangeSearch(List<Long> segments, CandidateSet start, List<QueryPlanner.Term> terms) {
+            this.segments = segments;
+            this.start = start;
+            this.terms = terms;
+        }
+        
+        @Override
+        protected CandidateSet compute() {
+            if (segments.size() > BULK_PAGE_SIZE) {
+                int middle = segments.size() / 2;
+                RangeSearch right = new RangeSearch(segments.subList(middle, segments.size()), start, terms);
+                right.fork();
+                CandidateSet candidates = new RangeSearch(segments.subList(0, middle), start, terms).compute();
+                // ranges don't overlap, so this is just moving bitmaps.
+                candidates.absorb(right.join());
+                return candidates;
+            }
+            CandidateSet candidates = start == null ? null : start.select(segments);
+            for (QueryPlanner.Term term : terms) {
+                CandidateSet hits = segmentSearch(term.getRowKeys(), candidates == null ? segments : candidates.getSegments());
+                if (candidates == null)
+                    candidates = hits;
+                else
+                    candidates.and(hits);
+                if (candidates.isEmpty())
+                    break;
+            }
+            return candidates;
+        }
+    }
+    
+    // reads and verifies one batch of segments at a time, starting at a position. the plan can't be empty.
+    private class LazyResults extends AbstractIterator<K> {
+        private final F field;
+        private final ValueMatcher matcher;
+        private final ResultPage.Position start;
+        // with a BulkIO the first term's rows are read a page at a time, from nextSegment on (-1 once they're done).
+        private final List<byte[]> firstRows;
+        private long nextSegment;
+        private final List<QueryPlanner.Term> rest;
+        // without one, everything gets read up front.
+        private final CandidateSet everything;
+        private final Iterator<List<Long>> everythingBatches;
+        
+        private CandidateSet batch;
+        private Iterator<Long> segments = Iterators.emptyIterator();
+        private Iterator<K> keys = Iterators.emptyIterator();
+        private long segment = -1;
+        private int returned = 0;
+        private int skip = 0;
+        
+        LazyResults(F field, List<QueryPlanner.Term> plan, ValueMatcher matcher, ResultPage.Position start) {
+            this.field = field;
+            this.matcher = matcher;
+            this.start = start == null ? new ResultPage.Position(0, 0) : start;
+            if (io instanceof BulkIO) {
+                firstRows = plan.get(0).getRowKeys();
+                nextSegment = this.start.getSegment();
+                rest = plan.subList(1, plan.size());
+                everything = null;
+                everythingBatches = null;
+            } else {
+                // no way to read just some segments.
+                firstRows = null;
+                rest = Collections.emptyList();
+                everything = candidates(plan, null);
+                List<Long> from = new ArrayList<Long>();
+                for (long segment : everything.getSegments())
+                    if (segment >= this.start.getSegment())
+                        from.add(segment);
+                everythingBatches = Iterables.partition(from, BULK_PAGE_SIZE).iterator();
+            }
+        }
+        
+        // where the next result (or the end) is.
+        ResultPage.Position position() {
+            return segment < 0 ? start : new ResultPage.Position(segment, returned);
+        }
+        
+        @Override
+        protected K computeNext() {
+            while (true) {
+                while (keys.hasNext()) {
+                    K key = keys.next();
+                    String value = dataLookup.lookup(key, field);
+                    if (value == null || !matcher.matches(value))
+                        continue;
+                    returned += 1;
+                    if (skip > 0)
+                        skip -= 1;
+                    else
+                        return key;
+                }
+                if (segments.hasNext()) {
+                    segment = segments.next();
+                    returned = 0;
+                    skip = segment == start.getSegment() ? start.getSkip() : 0;
+                    CandidateSet bits = batch.select(Collections.singleton(segment));
+                    keys = new LinkedHashSet<K>(keyLookup.toKeys(bits.toBits())).iterator();
+                    continue;
+                }
+                batch = nextBatch();
+                if (batch == null)
+                    return endOfData();
+                segments = new ArrayList<Long>(batch.getSegments()).iterator();
+            }
+        }
+        
+        // the candidates of the next range of segments that has any, or null when there are no more.
+        private CandidateSet nextBatch() {
+            while (true) {
+                CandidateSet candidates;
+                if (everything != null) {
+                    if (!everythingBatches.hasNext())
+                        return null;
+                    candidates = everything.select(everythingBatches.next());
+                } else if (nextSegment < 0)
+                    return null;
+                else
+                    candidates = nextFirstPage();
+                for (QueryPlanner.Term term : rest) {
+                    if (candidates.isEmpty())
+                        break;
+                    candidates.and(segmentSearch(term.getRowKeys(), candidates.getSegments()));
+                }
+                if (!candidates.isEmpty())
+                    return candidates;
+            }
+        }
+        
+        // the union of the first term's rows, from nextSegment up to the last segment every row has been read to.
+        private CandidateSet nextFirstPage() {
+            @SuppressWarnings("unchecked") BulkIO<Long, IBitmap> bulkIO = (BulkIO<Long, IBitmap>)io;
+            List<SortedMap<Long, IBitmap>> pages = new ArrayList<SortedMap<Long, IBitmap>>();
+            long upTo = Long.MAX_VALUE;
+            for (byte[] rowKey : firstRows) {
+                try {
+                    SortedMap<Long, IBitmap> page = bulkIO.rangeGet(rowKey, nextSegment, BULK_PAGE_SIZE);
+                    pages.add(page);
+                    // a full page means the row may go on past it.
+                    if (page.size() >= BULK_PAGE_SIZE)
+                        upTo = Math.min(upTo, page.lastKey());
+                } catch (Exception ex) {
+                    throw new IOError(ex);
+                }
+            }
+            CandidateSet candidates = new CandidateSet(segmentBitLength);
+            for (SortedMap<Long, IBitmap> page : pages) {
+                for (Map.Entry<Long, IBitmap> entry : page.entrySet()) {
+                    if (entry.getKey() > upTo)
+                        break;
+                    candidates.or(entry.getKey(), entry.getValue());
+                }
+            }
+            nextSegment = upTo == Long.MAX_VALUE ? -1 : upTo + 1;
+            return candidates;
+        }
+    }
+    
+    // plans for one search(Query), so each predicate only goes to the plan cache once.
+    private class QueryEvaluation {
+        private final Map<Query.Predicate<F>, PlanCache.Planned> planned = new IdentityHashMap<Query.Predicate<F>, PlanCache.Planned>();
+        
+        private final Comparator<Query<F>> cheapestFirst = new Comparator<Query<F>>() {
+            public int compare(Query<F> a, Query<F> b) {
+                return Long.compare(estimate(a), estimate(b));
+            }
+        };
+        
+        // null means the query rules nothing out.
+        CandidateSet candidates(Query<F> query, CandidateSet within) {
+            if (query instanceof Query.Predicate)
+                return StandardIndexReader.this.candidates(planned((Query.Predicate<F>)query).getPlan(), within);
+            if (query instanceof Query.Not)
+                return null; // the bitmaps can only say what might match, never what can't.
+            if (query instanceof Query.And) {
+                CandidateSet candidates = null;
+                for (Query<F> operand : sorted(((Query.And<F>)query).getOperands())) {
+                    CandidateSet hits = candidates(operand, candidates != null ? candidates : within);
+                    if (hits == null)
+                        continue;
+                    if (candidates == null)
+                        candidates = hits;
+                    else
+                        candidates.and(hits);
+                    if (candidates.isEmpty())
+                        break;
+                }
+                return candidates;
+            }
+            CandidateSet candidates = new CandidateSet(segmentBitLength);
+            for (Query<F> operand : ((Query.Or<F>)query).getOperands()) {
+                CandidateSet hits = candidates(operand, within);
+                if (hits == null)
+                    return null;
+                candidates.or(hits);
+            }
+            return candidates;
+        }
+        
+        // roughly how many bits the query leaves. Long.MAX_VALUE if it rules nothing out.
+        long estimate(Query<F> query) {
+            if (query instanceof Query.Predicate) {
+                long estimate = Long.MAX_VALUE;
+                for (QueryPlanner.Term term : planned((Query.Predicate<F>)query).getPlan())
+                    estimate = Math.min(estimate, term.getEstimate());
+                return estimate;
+            }
+            if (query instanceof Query.Not)
+                return Long.MAX_VALUE;
+            if (query instanceof Query.And) {
+                long estimate = Long.MAX_VALUE;
+                for (Query<F> operand : ((Query.And<F>)query).getOperands())
+                    estimate = Math.min(estimate, estimate(operand));
+                return estimate;
+            }
+            long estimate = 0;
+            for (Query<F> operand : ((Query.Or<F>)query).getOperands()) {
+                estimate += estimate(operand);
+                if (estimate < 0)
+                    return Long.MAX_VALUE;
+            }
+            return estimate;
+        }
+        
+        // every field the query reads. plans all of its predicates on the way.
+        Set<F> fields(Query<F> query) {
+            Set<F> fields = new HashSet<F>();
+            addFields(query, fields);
+            return fields;
+        }
+        
+        private void addFields(Query<F> query, Set<F> fields) {
+            if (query instanceof Query.Predicate) {
+                planned((Query.Predicate<F>)query);
+                fields.add(((Query.Predicate<F>)query).getField());
+            } else if (query instanceof Query.Not)
+                addFields(((Query.Not<F>)query).getOperand(), fields);
+            else {
+                List<Query<F>> operands = query instanceof Query.And
+                        ? ((Query.And<F>)query).getOperands()
+                        : ((Query.Or<F>)query).getOperands();
+                for (Query<F> operand : operands)
+                    addFields(operand, fields);
+            }
+        }
+        
+        // values holds what's been looked up for this key so far.
+        boolean matches(Query<F> query, K key, Map<F, String> values) {
+            if (query instanceof Query.Predicate) {
+                Query.Predicate<F> predicate = (Query.Predicate<F>)query;
+                if (!values.containsKey(predicate.getField()))
+                    values.put(predicate.getField(), dataLookup.lookup(key, predicate.getField()));
+                String value = values.get(predicate.getField());
+                if (value == null)
+                    return false;
+                return planned(predicate).getMatcher().matches(value);
+            }
+            if (query instanceof Query.Not)
+                return !matches(((Query.Not<F>)query).getOperand(), key, values);
+            if (query instanceof Query.And) {
+                for (Query<F> operand : sorted(((Query.And<F>)query).getOperands()))
+                    if (!matches(operand, key, values))
+                        return false;
+                return true;
+            }
+            for (Query<F> operand : ((Query.Or<F>)query).getOperands())
+                if (matches(operand, key, values))
+                    return true;
+            return false;
+        }
+        
+        private List<Query<F>> sorted(List<Query<F>> operands) {
+            List<Query<F>> sorted = new ArrayList<Query<F>>(operands);
+            Collections.sort(sorted, cheapestFirst);
+            return sorted;
+        }
+        
+        private PlanCache.Planned planned(Query.Predicate<F> predicate) {
+            PlanCache.Planned plan = planned.get(predicate);
+            if (plan == null) {
+                plan = predicate.isRegex()
+                        ? plans.regex(predicate.getField(), predicate.getPattern())
+                        : plans.glob(predicate.getField(), predicate.getPattern());
+                planned.put(predicate, plan);
+            }
+            return plan;
+        }
     }
     
     private class UnsafeCounter {
@@ -1,36 +1,49 @@
 package headwater.index;
 
-import headwater.bitmap.BitmapFactory;
 import headwater.bitmap.IBitmap;
-import headwater.bitmap.MemoryBitmap2;
+import headwater.bitmap.RoaringBitmap;
 import headwater.hashing.BitHashableKey;
 import headwater.hashing.FunnelHasher;
 import headwater.hashing.Hashers;
 import headwater.io.IO;
 import headwater.io.MemoryBitmapIO;
-import headwater.trigram.Trigram;
+import headwater.io.RowObserver;
+import headwater.trigram.NGrams;
+import headwater.trigram.TrigramExtractor;
 
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class StandardIndexWriter<K, F> implements IndexWriter<K, F, String> {
     
     private final int segmentBitLength;
-    private final BigInteger indexBitLength;
+    private final long indexBitLength;
     private KeyObserver<K, F, String> observer = new NullKeyObserver<K, F, String>();
+    private RowStatistics statistics = new NullRowStatistics();
+    private RowObserver rowObserver = null;
     
     private IO<Long, IBitmap> io;
     
+    private int[] gramLengths = NGrams.TRIGRAMS.getLengths();
+    private boolean gramBoundaries = false;
+    private boolean nextMasks = false;
+    
+    // one per thread per gram length.
+    private final ThreadLocal<TrigramExtractor[]> extractors = new ThreadLocal<TrigramExtractor[]>() {
+        @Override
+        protected TrigramExtractor[] initialValue() {
+            return new TrigramExtractor[NGrams.MAX_LENGTH + 1];
+        }
+    };
+    
     public StandardIndexWriter(final int segmentBitLength, long indexBitLength) {
         if (indexBitLength % segmentBitLength != 0)
             throw new Error("indexBitLength must be evenly divisible by segmentBitLength");
         
         this.segmentBitLength = segmentBitLength;
-        this.indexBitLength = new BigInteger(Long.toString(indexBitLength));
-        this.io = new MemoryBitmapIO().withBitmapFactory(new BitmapFactory() {
-            public IBitmap make() {
-                return new MemoryBitmap2(segmentBitLength);
-            }
-        });
+        this.indexBitLength = indexBitLength;
+        this.io = new MemoryBitmapIO().withBitmapFactory(RoaringBitmap.factory(segmentBitLength));
     }
     
     public StandardIndexWriter<K, F> withObserver(KeyObserver<K, F, String> observer) {
@@ -38,30 +51,94 @@ public class StandardIndexWriter<K, F> implements IndexWriter<K, F, String> {
         return this;
     }
     
+    public StandardIndexWriter<K, F> withStatistics(RowStatistics statistics) {
+        this.statistics = statistics;
+        return this;
+    }
+    
+    /**
+     * told about every row an add() touches, whether or not a bit changed, once all of them have been written. One
+     * call per add(). CachingIndexReader uses this to drop the results that depend on the rows.
+     */
+    public StandardIndexWriter<K, F> withRowObserver(RowObserver rowObserver) {
+        this.rowObserver = rowObserver;
+        return this;
+    }
+    
+    /** which gram lengths to index. Readers of this index need the same ones. */
+    public StandardIndexWriter<K, F> withGrams(NGrams grams) {
+        this.gramLengths = grams.getLengths();
+        this.gramBoundaries = grams.hasBoundaries();
+        this.nextMasks = grams.hasNextMasks();
+        return this;
+    }
+    
     public StandardIndexWriter<K, F> withIO(IO<Long, IBitmap> io) {
         this.io = io;
         return this;
     }
     
     public void add(K key, F field, String value) {
-        @SuppressWarnings("unchecked") final BitHashableKey<K> keyHash = ((FunnelHasher<K>) Hashers.makeHasher(key.getClass(), indexBitLength.longValue())).hashableKey(key);
+        @SuppressWarnings("unchecked") final BitHashableKey<K> keyHash = ((FunnelHasher<K>) Hashers.makeHasher(key.getClass(), indexBitLength)).hashableKey(key);
         final long segment = keyHash.getHashBit() / segmentBitLength;
         final long bitInSegment = keyHash.getHashBit() % segmentBitLength;
         
         observer.observe(keyHash, field, value);
         
-        // now assert that bit for each trigram we are indexing.
+        // now assert that bit for each gram we are indexing.
         
-        for (Trigram trigram :Trigram.make(value.toString())) {
-            byte[] indexKey = Hashers.computeIndexRowKey(field, trigram);
-            //IBitmap segmentMap = getSegment(indexKey, segment);
-            try {
-                IBitmap segmentMap = io.get(indexKey, segment);
-                segmentMap.set(bitInSegment, true);  
-            } catch (Exception ex) {
-                // shouldn't happen because NotFoundException is already dealt with.
-                throw new Error(ex);
+        List<byte[]> touched = rowObserver == null ? null : new ArrayList<byte[]>();
+        TrigramExtractor[] threadExtractors = extractors.get();
+        for (int length : gramLengths) {
+            TrigramExtractor extractor = threadExtractors[length];
+            if (extractor == null) {
+                extractor = new TrigramExtractor(length);
+                threadExtractors[length] = extractor;
+            }
+            // a unigram of a sentinel would just be a row with every value in it.
+            if (gramBoundaries && length > 1)
+                extractor.extractBounded(value);
+            else
+                extractor.extract(value);
+            long[] windows = nextMasks ? Arrays.copyOf(extractor.getCodes(), extractor.getCount()) : null;
+            int count = extractor.distinct();
+            long[] codes = extractor.getCodes();
+            for (int i = 0; i < count; i++)
+                assertBit(Hashers.getIndexRowKey(field, length, codes[i]), segment, bitInSegment, touched);
+            if (nextMasks)
+                assertNextMasks(field, length, windows, codes, count, segment, bitInSegment, touched);
+        }
+        // grams are distinct, so every row shows up once.
+        if (touched != null)
+            rowObserver.observeRows(touched);
+    }
+    
+    // gathers the buckets that follow each distinct gram first, so a repeated pair only gets asserted once.
+    private void assertNextMasks(F field, int length, long[] windows, long[] codes, int count, long segment, long bitInSegment, List<byte[]> touched) {
+        int[] masks = new int[count];
+        for (int i = 0; i + 1 < windows.length; i++) {
+            int index = Arrays.binarySearch(codes, 0, count, windows[i]);
+            masks[index] |= 1 << NGrams.nextBucket(NGrams.lastCodePoint(windows[i + 1], length));
+        }
+        for (int i = 0; i < count; i++)
+            for (int bucket = 0; bucket < NGrams.NEXT_BUCKETS; bucket++)
+                if ((masks[i] & (1 << bucket)) != 0)
+                    assertBit(Hashers.getNextMaskRowKey(field, length, codes[i], bucket), segment, bitInSegment, touched);
+    }
+    
+    // touched (if there is one) gets the row.
+    private void assertBit(byte[] indexKey, long segment, long bitInSegment, List<byte[]> touched) {
+        try {
+            IBitmap segmentMap = io.get(indexKey, segment);
+            if (!segmentMap.get(bitInSegment)) {
+                segmentMap.set(bitInSegment, true);
+                statistics.increment(indexKey);
             }
+            if (touched != null)
+                touched.add(indexKey);
+        } catch (Exception ex) {
+            // shouldn't happen because NotFoundException is already dealt with.
+            throw new Error(ex);
         }
     }
 }
@@ -0,0 +1,6 @@
+package headwater.index;
+
+/** decides whether a candidate's value really matches a query. Implementations are thread safe. */
+public interface ValueMatcher {
+    public boolean matches(String value);
+}
@@ -0,0 +1,150 @@
+package headwater.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.oro.text.GlobCompiler;
+import org.apache.oro.text.regex.MalformedPatternException;
+import org.apache.oro.text.regex.Pattern;
+import org.apache.oro.text.regex.PatternMatcher;
+import org.apache.oro.text.regex.Perl5Compiler;
+import org.apache.oro.text.regex.Perl5Matcher;
+
+import java.io.IOError;
+
+/**
+ * Compiled value matchers, cached by query string. Most globs are literals joined by '*', and those are matched by
+ * looking for each literal in turn with indexOf() instead of going through ORO. Globs with '?', classes or escapes (and
+ * all regexes) are still compiled by ORO.
+ */
+public class ValueMatchers {
+    private static final int CACHE_SIZE = 1000;
+    
+    private static final Cache<String, ValueMatcher> globs = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+    private static final Cache<String, ValueMatcher> regexes = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+    
+    // matchers aren't thread safe. patterns compiled read only are, so those get shared.
+    private static final ThreadLocal<PatternMatcher> matchers = new ThreadLocal<PatternMatcher>() {
+        @Override
+        protected PatternMatcher initialValue() {
+            return new Perl5Matcher();
+        }
+    };
+    
+    /** matches values that the whole glob matches. */
+    public static ValueMatcher glob(String glob) {
+        ValueMatcher matcher = globs.getIfPresent(glob);
+        if (matcher == null) {
+            matcher = isLiteral(glob) ? new LiteralGlobMatcher(glob) : new OroMatcher(compileGlob(glob), true);
+            globs.put(glob, matcher);
+        }
+        return matcher;
+    }
+    
+    /** matches values that contain a match of a perl5 regex. */
+    public static ValueMatcher regex(String regex) {
+        ValueMatcher matcher = regexes.getIfPresent(regex);
+        if (matcher == null) {
+            try {
+                matcher = new OroMatcher(new Perl5Compiler().compile(regex, Perl5Compiler.READ_ONLY_MASK), false);
+            } catch (MalformedPatternException ex) {
+                throw new IOError(ex);
+            }
+            regexes.put(regex, matcher);
+        }
+        return matcher;
+    }
+    
+    // a '*' in an ORO glob never matches a newline, so globs with one are left to ORO too.
+    static boolean isLiteral(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char ch = glob.charAt(i);
+            if (ch == '?' || ch == '[' || ch == '\\' || ch == '\n')
+                return false;
+        }
+        return true;
+    }
+    
+    private static Pattern compileGlob(String glob) {
+        try {
+            return new GlobCompiler().compile(glob, GlobCompiler.READ_ONLY_MASK);
+        } catch (MalformedPatternException ex) {
+            throw new IOError(ex);
+        }
+    }
+    
+    private static class OroMatcher implements ValueMatcher {
+        private final Pattern pattern;
+        private final boolean whole;
+        
+        OroMatcher(Pattern pattern, boolean whole) {
+            this.pattern = pattern;
+            this.whole = whole;
+        }
+        
+        public boolean matches(String value) {
+            PatternMatcher matcher = matchers.get();
+            return whole ? matcher.matches(value, pattern) : matcher.contains(value, pattern);
+        }
+    }
+    
+    // the parcels between the '*'s have to appear in order: the first one at the start unless the glob starts with a
+    // '*', the last one at the end unless it ends with one. leftmost occurrences are always the right ones to take.
+    static class LiteralGlobMatcher implements ValueMatcher {
+        private final String glob;
+        private final boolean hasStar;
+        private final String[] parcels;
+        private final boolean anchoredStart;
+        private final boolean anchoredEnd;
+        private final int minLength;
+        
+        LiteralGlobMatcher(String glob) {
+            this.glob = glob;
+            this.hasStar = glob.indexOf('*') >= 0;
+            this.anchoredStart = !glob.startsWith("*");
+            this.anchoredEnd = !glob.endsWith("*");
+            int count = 0;
+            for (String parcel : glob.split("\\*"))
+                if (parcel.length() > 0)
+                    count++;
+            this.parcels = new String[count];
+            int length = 0;
+            count = 0;
+            for (String parcel : glob.split("\\*")) {
+                if (parcel.length() > 0) {
+                    parcels[count++] = parcel;
+                    length += parcel.length();
+                }
+            }
+            this.minLength = length;
+        }
+        
+        public boolean matches(String value) {
+            if (!hasStar)
+                return value.equals(glob);
+            // nothing in the glob can match a newline.
+            if (value.length() < minLength || value.indexOf('\n') >= 0)
+                return false;
+            int first = 0;
+            int last = parcels.length - 1;
+            int from = 0;
+            int to = value.length();
+            if (anchoredStart) {
+                if (!value.startsWith(parcels[first]))
+                    return false;
+                from = parcels[first++].length();
+            }
+            if (anchoredEnd) {
+                if (!value.endsWith(parcels[last]))
+                    return false;
+                to -= parcels[last--].length();
+            }
+            for (int i = first; i <= last; i++) {
+                int at = value.indexOf(parcels[i], from);
+                if (at < 0 || at + parcels[i].length() > to)
+                    return false;
+                from = at + parcels[i].length();
+            }
+            return from <= to;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package headwater.io;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+
+public interface BulkIO<C,V> extends IO<C,V> {
+    /** the named columns that exist in the row. Missing columns are left out and never created. */
+    public Map<C,V> bulkGet(byte[] key, Collection<C> cols) throws Exception;
+    
+    /** up to limit of the row's columns, in order, starting at from. A short page means the row is done. */
+    public SortedMap<C,V> rangeGet(byte[] key, C from, int limit) throws Exception;
+}
@@ -19,8 +19,9 @@ import com.netflix.astyanax.serializers.BytesArraySerializer;
 import com.netflix.astyanax.thrift.ThriftFamilyFactory;
 import com.netflix.astyanax.util.RangeBuilder;
 import headwater.Utils;
+import headwater.bitmap.BitmapWrapper;
 import headwater.bitmap.IBitmap;
-import headwater.bitmap.MemoryBitmap2;
+import headwater.bitmap.RoaringBitmap;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -28,17 +29,21 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
-public class CassandraBitmapIO implements IO<Long, IBitmap> {
+public class CassandraBitmapIO implements BulkIO<Long, IBitmap> {
 
     private Keyspace keyspace;
     private final ColumnFamily<byte[], byte[]> columnFamily;
     private final AstyanaxContext.Builder builder;
+    private BitmapWrapper bitmapWrapper = RoaringBitmap.COMPATIBLE_WRAPPER;
     
     private static final Timer putTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "put"));
     private static final Timer getTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "get"));
     private static final Timer bulkGetTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "bulk-get"));
     private static final Histogram bulkGetHist = Utils.getMetricRegistry().histogram(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "bulk-get-counts"));
+    private static final Timer rangeGetTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "range-get"));
     private static final Timer visitAllTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "visit"));
     private static final Timer flushTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "flush"));
     private static final Timer batchTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(CassandraBitmapIO.class, "cassandra", "batch"));
@@ -67,6 +72,13 @@ public class CassandraBitmapIO implements IO<Long, IBitmap> {
         this.columnFamily = ColumnFamily.newColumnFamily(columnFamily, BytesArraySerializer.get(), BytesArraySerializer.get(), BytesArraySerializer.get());
     }
     
+    // must understand whatever IBitmap.toBytes() produced when the columns were written. The default reads both the
+    // RoaringBitmaps StandardIndexWriter buffers by default and raw MemoryBitmap2 columns.
+    public CassandraBitmapIO withBitmapWrapper(BitmapWrapper wrapper) {
+        this.bitmapWrapper = wrapper;
+        return this;
+    }
+    
     public void put(byte[] key, Long col, IBitmap value) throws Exception {
         Timer.Context ctx = putTimer.time();
         try {
@@ -125,7 +137,7 @@ public class CassandraBitmapIO implements IO<Long, IBitmap> {
             Column<byte[]> col;
             while (it.hasNext()) {
                 col = it.next();
-                map.put(Utils.bytesToLong(col.getName()), MemoryBitmap2.wrap(col.getValue(BytesArraySerializer.get())));
+                map.put(Utils.bytesToLong(col.getName()), bitmapWrapper.wrap(col.getValue(BytesArraySerializer.get())));
             }
         } finally {
             ctx.stop();
@@ -141,12 +153,29 @@ public class CassandraBitmapIO implements IO<Long, IBitmap> {
                     .getKey(key)
                     .getColumn(Utils.longToBytes(col))
                     .execute().getResult().getByteArrayValue();
-            return MemoryBitmap2.wrap(buf);
+            return bitmapWrapper.wrap(buf);
         } finally {
             ctx.stop();
         }
     }
     
+    // segments are never negative, so the big-endian column names sort the same way the longs do.
+    public SortedMap<Long, IBitmap> rangeGet(byte[] key, Long from, int limit) throws Exception {
+        Timer.Context ctx = rangeGetTimer.time();
+        SortedMap<Long, IBitmap> map = new TreeMap<Long, IBitmap>();
+        try {
+            ColumnList<byte[]> cols = keyspace.prepareQuery(columnFamily)
+                    .getKey(key)
+                    .withColumnRange(new RangeBuilder().setStart(Utils.longToBytes(from)).setLimit(limit).build())
+                    .execute().getResult();
+            for (Column<byte[]> col : cols)
+                map.put(Utils.bytesToLong(col.getName()), bitmapWrapper.wrap(col.getByteArrayValue()));
+        } finally {
+            ctx.stop();
+        }
+        return map;
+    }
+    
     // iterate over all columns, paging through data in a row.
     public void visitAllColumns(byte[] key, int pageSize, ColumnObserver<Long, IBitmap> observer) throws Exception {
         
@@ -162,7 +191,7 @@ public class CassandraBitmapIO implements IO<Long, IBitmap> {
             while (!(columnList = query.execute().getResult()).isEmpty()) {
                 for (Column<byte[]> col : columnList) {
                     long colName = Utils.bytesToLong(col.getName());
-                    IBitmap bitmap = MemoryBitmap2.wrap(col.getByteArrayValue());
+                    IBitmap bitmap = bitmapWrapper.wrap(col.getByteArrayValue());
                     observer.observe(key, colName, bitmap);
                 }
             }
@@ -0,0 +1,344 @@
+package headwater.io;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.UnsignedBytes;
+import headwater.bitmap.ByteBufferBitmap;
+import headwater.bitmap.IBitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps each row in its own memory-mapped file under a directory. Bitmaps handed out by get() and visitAllColumns()
+ * are views straight into the mapping, so reads are served from the OS page cache without copying and writes to them
+ * land in the file. Rows are opened lazily, so startup costs nothing no matter how big the store is.
+ *
+ * A row file is a 16 byte header (magic, unused, end of data) followed by records of
+ * (segment:long, numBytes:int, raw bitmap bytes). Deleted or resized records get their numBytes inverted (~) and are
+ * skipped. The next record of the same size takes over a dead one, and since a row's segments are almost always the
+ * same size that keeps delete/put churn from growing the file. Records of odd sizes can still leave dead bytes behind,
+ * so a row that's mostly dead is compacted when it's opened, before any views into it exist. The live records go to a
+ * new file that then replaces the old one, so a crash leaves one of the two whole.
+ *
+ * Views survive the file growing, but not their segment going away: once a segment is deleted, or put with a
+ * different size, a view of it reads and writes whatever record takes over its space, and nothing notices. Get the
+ * segment again after doing either.
+ *
+ * A row's records are read once, when it's opened, so whatever another process appends later is never seen. One
+ * MappedBitmapIO owns the directory: each row file stays locked while it's open, and opening it from anywhere else
+ * (including a second MappedBitmapIO in the same process) fails until close().
+ */
+public class MappedBitmapIO implements BulkIO<Long, IBitmap> {
+    private static final int MAGIC = 0x48575347; // HWSG
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int INITIAL_FILE_SIZE = 64 * 1024;
+    private static final String SUFFIX = ".seg";
+
+    private final File dir;
+    private final int segmentBitLength;
+    private final Map<byte[], Row> rows = new TreeMap<byte[], Row>(UnsignedBytes.lexicographicalComparator());
+
+    public MappedBitmapIO(File dir, int segmentBitLength) {
+        if (segmentBitLength % 8 != 0)
+            throw new IllegalArgumentException("segmentBitLength must be evenly divisible by 8");
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IllegalArgumentException("Cannot create " + dir.getAbsolutePath());
+        this.dir = dir;
+        this.segmentBitLength = segmentBitLength;
+    }
+
+    private Row getRow(byte[] key, boolean create) throws IOException {
+        synchronized (rows) {
+            Row row = rows.get(key);
+            if (row == null) {
+                File file = new File(dir, BaseEncoding.base16().lowerCase().encode(key) + SUFFIX);
+                if (!create && !file.exists())
+                    return null;
+                row = new Row(file);
+                rows.put(key, row);
+            }
+            return row;
+        }
+    }
+
+    /** copies the bits of value into the file. */
+    public void put(byte[] key, Long col, IBitmap value) throws Exception {
+        if (value.getBitLength() % 8 != 0)
+            throw new IllegalArgumentException("bitmap length must be evenly divisible by 8");
+        int numBytes = (int)(value.getBitLength() / 8);
+        // copied first: value may be a view of the very slot it's going back into.
+        byte[] bits = value.toBytes(0, numBytes);
+        getRow(key, true).allocate(col, numBytes).setAll(bits);
+    }
+
+    /** never misses: like MemoryBitmapIO with a BitmapFactory, an empty segment is created if there isn't one. */
+    public IBitmap get(byte[] key, Long col) throws Exception {
+        Row row = getRow(key, true);
+        IBitmap value = row.view(col);
+        if (value != null)
+            return value;
+        return row.allocate(col, segmentBitLength / 8);
+    }
+
+    public void del(byte[] key, Long col) throws Exception {
+        Row row = getRow(key, false);
+        if (row != null)
+            row.delete(col);
+    }
+
+    public Map<Long, IBitmap> bulkGet(byte[] key, Collection<Long> cols) throws Exception {
+        Map<Long, IBitmap> found = new HashMap<Long, IBitmap>();
+        Row row = getRow(key, false);
+        if (row == null)
+            return found;
+        for (Long col : cols) {
+            IBitmap value = row.view(col);
+            if (value != null)
+                found.put(col, value);
+        }
+        return found;
+    }
+
+    public SortedMap<Long, IBitmap> rangeGet(byte[] key, Long from, int limit) throws Exception {
+        Row row = getRow(key, false);
+        if (row == null)
+            return new TreeMap<Long, IBitmap>();
+        return row.views(from, limit);
+    }
+
+    public void visitAllColumns(byte[] key, int pageSize, ColumnObserver<Long, IBitmap> observer) throws Exception {
+        Row row = getRow(key, false);
+        if (row == null)
+            return;
+        for (Map.Entry<Long, IBitmap> entry : row.views().entrySet())
+            observer.observe(key, entry.getKey(), entry.getValue());
+    }
+
+    /** forces every open row to disk. */
+    public void sync() {
+        synchronized (rows) {
+            for (Row row : rows.values())
+                row.sync();
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (rows) {
+            for (Row row : rows.values())
+                row.close();
+            rows.clear();
+        }
+    }
+
+    private static class Row {
+        private final File path;
+        private RandomAccessFile file;
+        private MappedByteBuffer map;
+        private long end;
+        private final TreeMap<Long, Integer> offsets = new TreeMap<Long, Integer>();
+        // dead records by size.
+        private final Map<Integer, Deque<Integer>> free = new HashMap<Integer, Deque<Integer>>();
+        private long deadBytes = 0;
+
+        Row(File path) throws IOException {
+            this.path = path;
+            boolean exists = path.exists() && path.length() >= HEADER_SIZE;
+            file = open(path);
+            if (!exists) {
+                file.setLength(INITIAL_FILE_SIZE);
+                remap();
+                map.putInt(0, MAGIC);
+                end = HEADER_SIZE;
+                map.putLong(8, end);
+                return;
+            }
+
+            remap();
+            if (map.getInt(0) != MAGIC) {
+                file.close();
+                throw new IOException(path.getAbsolutePath() + " is not a segment file");
+            }
+            load();
+            if (deadBytes * 2 > end - HEADER_SIZE)
+                compact();
+        }
+
+        // locked, so nobody else can write it behind our back.
+        private static RandomAccessFile open(File path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                if (file.getChannel().tryLock() != null)
+                    return file;
+            } catch (OverlappingFileLockException ex) {
+                // held by this process.
+            }
+            file.close();
+            throw new IOException(path.getAbsolutePath() + " is already open");
+        }
+
+        // walks the records.
+        private void load() {
+            end = map.getLong(8);
+            offsets.clear();
+            free.clear();
+            deadBytes = 0;
+            int pos = HEADER_SIZE;
+            while (pos < end) {
+                long segment = map.getLong(pos);
+                int numBytes = map.getInt(pos + 8);
+                if (numBytes >= 0)
+                    offsets.put(segment, pos);
+                else
+                    free(pos, ~numBytes);
+                pos += RECORD_HEADER_SIZE + (numBytes >= 0 ? numBytes : ~numBytes);
+            }
+        }
+
+        // writes the live records to a new file and moves it over this one. only safe while nobody holds a view.
+        private void compact() throws IOException {
+            File compacted = new File(path.getPath() + ".tmp");
+            RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+            try {
+                out.setLength(0);
+                out.writeInt(MAGIC);
+                out.writeInt(0);
+                out.writeLong(0);
+                long to = HEADER_SIZE;
+                byte[] record = new byte[0];
+                for (int from : offsets.values()) {
+                    int length = RECORD_HEADER_SIZE + map.getInt(from + 8);
+                    if (record.length < length)
+                        record = new byte[length];
+                    map.position(from);
+                    map.get(record, 0, length);
+                    out.write(record, 0, length);
+                    to += length;
+                }
+                map.position(0);
+                out.seek(8);
+                out.writeLong(to);
+                // same room as before, so new records don't have to grow it right away.
+                out.setLength(file.length());
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(compacted.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            RandomAccessFile old = file;
+            file = open(path);
+            old.close();
+            remap();
+            load();
+        }
+
+        private void free(int offset, int numBytes) {
+            Deque<Integer> slots = free.get(numBytes);
+            if (slots == null) {
+                slots = new ArrayDeque<Integer>();
+                free.put(numBytes, slots);
+            }
+            slots.push(offset);
+            deadBytes += RECORD_HEADER_SIZE + numBytes;
+        }
+
+        // views made from an older mapping stay valid because the file only grows.
+        private void remap() throws IOException {
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+
+        synchronized IBitmap view(long segment) {
+            Integer offset = offsets.get(segment);
+            if (offset == null)
+                return null;
+            return new ByteBufferBitmap(map, offset + RECORD_HEADER_SIZE, map.getInt(offset + 8));
+        }
+
+        synchronized Map<Long, IBitmap> views() {
+            return views(Long.MIN_VALUE, Integer.MAX_VALUE);
+        }
+
+        synchronized SortedMap<Long, IBitmap> views(long from, int limit) {
+            SortedMap<Long, IBitmap> views = new TreeMap<Long, IBitmap>();
+            for (Map.Entry<Long, Integer> entry : offsets.tailMap(from, true).entrySet()) {
+                if (views.size() == limit)
+                    break;
+                views.put(entry.getKey(), new ByteBufferBitmap(map, entry.getValue() + RECORD_HEADER_SIZE, map.getInt(entry.getValue() + 8)));
+            }
+            return views;
+        }
+
+        synchronized IBitmap allocate(long segment, int numBytes) throws IOException {
+            Integer existing = offsets.get(segment);
+            if (existing != null) {
+                if (map.getInt(existing + 8) == numBytes)
+                    return view(segment);
+                delete(segment);
+            }
+
+            Deque<Integer> slots = free.get(numBytes);
+            if (slots != null && !slots.isEmpty()) {
+                int offset = slots.pop();
+                deadBytes -= RECORD_HEADER_SIZE + numBytes;
+                map.putLong(offset, segment);
+                map.putInt(offset + 8, numBytes);
+                offsets.put(segment, offset);
+                IBitmap bitmap = new ByteBufferBitmap(map, offset + RECORD_HEADER_SIZE, numBytes);
+                bitmap.clear();
+                return bitmap;
+            }
+
+            long needed = end + RECORD_HEADER_SIZE + numBytes;
+            if (needed > Integer.MAX_VALUE)
+                throw new IOException("Row is too big to map");
+            if (needed > map.capacity()) {
+                file.setLength(Math.min(Integer.MAX_VALUE, Math.max(needed, map.capacity() * 2L)));
+                remap();
+            }
+
+            int offset = (int)end;
+            map.putLong(offset, segment);
+            map.putInt(offset + 8, numBytes);
+            end = needed;
+            map.putLong(8, end);
+            offsets.put(segment, offset);
+
+            IBitmap bitmap = new ByteBufferBitmap(map, offset + RECORD_HEADER_SIZE, numBytes);
+            bitmap.clear();
+            return bitmap;
+        }
+
+        // the record's space goes to the next one of the same size, views of it included.
+        synchronized void delete(long segment) {
+            Integer offset = offsets.remove(segment);
+            if (offset != null) {
+                int numBytes = map.getInt(offset + 8);
+                map.putInt(offset + 8, ~numBytes);
+                free(offset, numBytes);
+            }
+        }
+
+        synchronized void sync() {
+            map.force();
+        }
+
+        synchronized void close() throws IOException {
+            map.force();
+            file.close();
+        }
+    }
+}
@@ -6,20 +6,25 @@ import com.codahale.metrics.Timer;
 import com.google.common.primitives.UnsignedBytes;
 import com.netflix.astyanax.connectionpool.exceptions.NotFoundException;
 import headwater.Utils;
+import headwater.bitmap.BitmapArena;
 import headwater.bitmap.BitmapFactory;
-import headwater.bitmap.BitmapUtils;
 import headwater.bitmap.IBitmap;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
-public class MemoryBitmapIO implements IO<Long, IBitmap> {
+public class MemoryBitmapIO implements BulkIO<Long, IBitmap> {
     private static final Timer mergeTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(MemoryBitmapIO.class, "bitmaps", "merging"));
     private static final Timer mutatingOrTimer = Utils.getMetricRegistry().timer(MetricRegistry.name(MemoryBitmapIO.class, "bitmaps", "OR"));
     private static final Histogram flushBatchSize = Utils.getMetricRegistry().histogram(MetricRegistry.name(MemoryBitmapIO.class, "bitmaps", "batch-size"));
     
     private Map<byte[], Map<Long, IBitmap>> data = new TreeMap<byte[], Map<Long, IBitmap>>(UnsignedBytes.lexicographicalComparator());
     private BitmapFactory bitmapFactory = null;
+    private RowObserver flushObserver = null;
     
     public MemoryBitmapIO() {}
         
@@ -39,6 +44,12 @@ public class MemoryBitmapIO implements IO<Long, IBitmap> {
         return this;
     }
     
+    /** told about every row flush() sends to the database, all at once after they've been sent. */
+    public MemoryBitmapIO withFlushObserver(RowObserver observer) {
+        this.flushObserver = observer;
+        return this;
+    }
+    
     public void put(byte[] key, Long col, IBitmap value) throws Exception {
         getRow(key).put(col, value);
     }
@@ -56,6 +67,38 @@ public class MemoryBitmapIO implements IO<Long, IBitmap> {
         return value;
     }
 
+    public Map<Long, IBitmap> bulkGet(byte[] key, Collection<Long> cols) throws Exception {
+        Map<Long, IBitmap> found = new HashMap<Long, IBitmap>();
+        Map<Long, IBitmap> row;
+        synchronized (data) {
+            row = data.get(key);
+        }
+        if (row == null)
+            return found;
+        for (Long col : cols) {
+            IBitmap value = row.get(col);
+            if (value != null)
+                found.put(col, value);
+        }
+        return found;
+    }
+
+    public SortedMap<Long, IBitmap> rangeGet(byte[] key, Long from, int limit) throws Exception {
+        SortedMap<Long, IBitmap> found = new TreeMap<Long, IBitmap>();
+        TreeMap<Long, IBitmap> row;
+        synchronized (data) {
+            row = (TreeMap<Long, IBitmap>)data.get(key);
+        }
+        if (row == null)
+            return found;
+        for (Map.Entry<Long, IBitmap> entry : row.tailMap(from, true).entrySet()) {
+            if (found.size() == limit)
+                break;
+            found.put(entry.getKey(), entry.getValue());
+        }
+        return found;
+    }
+
     public void visitAllColumns(byte[] key, int pageSize, ColumnObserver<Long, IBitmap> observer) throws Exception {
         for (Map.Entry<Long, IBitmap> entry : getRow(key).entrySet()) {
             observer.observe(key, entry.getKey(), entry.getValue());
@@ -85,7 +128,7 @@ public class MemoryBitmapIO implements IO<Long, IBitmap> {
             // merge.
             for (Map.Entry<Long, IBitmap> diskEntry : disk.entrySet()) {
                 morCtx = mutatingOrTimer.time();
-                BitmapUtils.mutatingOR(memory.get(diskEntry.getKey()), diskEntry.getValue());
+                memory.get(diskEntry.getKey()).or(diskEntry.getValue());
                 morCtx.stop();
                 count += 1;
             }
@@ -95,8 +138,14 @@ public class MemoryBitmapIO implements IO<Long, IBitmap> {
         
         // send it all to the new database.
         receiver.flush(data);
+        if (flushObserver != null)
+            flushObserver.observeRows(new ArrayList<byte[]>(data.keySet()));
         
         // reset.
         data.clear();
+        
+        // the flushed segments are garbage now, so their slab space can be handed out again.
+        if (bitmapFactory instanceof BitmapArena)
+            ((BitmapArena)bitmapFactory).reset();
     }
 }
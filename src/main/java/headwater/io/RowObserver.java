@@ -0,0 +1,8 @@
+package headwater.io;
+
+import java.util.Collection;
+
+/** told which rows were written, all the rows of one write at once. */
+public interface RowObserver {
+    public void observeRows(Collection<byte[]> rows);
+}
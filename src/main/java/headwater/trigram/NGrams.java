@@ -0,0 +1,136 @@
+package headwater.trigram;
+
+import java.util.Arrays;
+
+/**
+ * Which gram lengths an index stores. The writer and the reader must be given the same one. Lengths from 1 to 4 are
+ * supported and trigrams alone are the default, which is what every index built before this existed contains.
+ *
+ * With boundaries on, values are indexed as if they started with START and ended with END (grams of length 1 excepted),
+ * so anchored globs like "foo*" and "*bar" only need a row or two, and values shorter than a gram still get indexed.
+ * Values shouldn't contain the sentinel characters themselves.
+ *
+ * With next masks on, each gram also gets a row per bucket of the code point that followed it (see nextBucket()). A
+ * query for "abcdef" can then read "abc followed by d's bucket" instead of "abc", which throws out most values that
+ * have abc and def apart before anything gets looked up. It costs up to NEXT_BUCKETS more rows per gram.
+ *
+ * A gram is packed into a long code: up to three code points get 21 bits each, so those codes are exact. Four-grams
+ * get 16 bits per code point; code points outside the BMP are folded into 16 bits, which can merge two grams into one
+ * row (more candidates to verify) but never loses a match.
+ */
+public class NGrams {
+    public static final int MAX_LENGTH = 4;
+    public static final NGrams TRIGRAMS = new NGrams(Trigram.N);
+    public static final char START = '\u0002';
+    public static final char END = '\u0003';
+    public static final int NEXT_BUCKETS = 8;
+
+    private final int[] lengths;
+    private boolean boundaries = false;
+    private boolean nextMasks = false;
+
+    public NGrams(int... lengths) {
+        if (lengths.length == 0)
+            throw new IllegalArgumentException("at least one gram length is needed");
+        this.lengths = Arrays.copyOf(lengths, lengths.length);
+        Arrays.sort(this.lengths);
+        for (int i = 0; i < this.lengths.length; i++) {
+            if (this.lengths[i] < 1 || this.lengths[i] > MAX_LENGTH)
+                throw new IllegalArgumentException("gram lengths must be between 1 and " + MAX_LENGTH);
+            if (i > 0 && this.lengths[i] == this.lengths[i - 1])
+                throw new IllegalArgumentException("duplicate gram length " + this.lengths[i]);
+        }
+    }
+
+    /** a copy of this that indexes the start and end of values. */
+    public NGrams withBoundaries() {
+        NGrams copy = copy();
+        copy.boundaries = true;
+        return copy;
+    }
+
+    public boolean hasBoundaries() {
+        return boundaries;
+    }
+
+    /** a copy of this that indexes which bucket of code points follows each gram. */
+    public NGrams withNextMasks() {
+        NGrams copy = copy();
+        copy.nextMasks = true;
+        return copy;
+    }
+
+    public boolean hasNextMasks() {
+        return nextMasks;
+    }
+
+    private NGrams copy() {
+        NGrams copy = new NGrams(lengths);
+        copy.boundaries = boundaries;
+        copy.nextMasks = nextMasks;
+        return copy;
+    }
+
+    /** ascending. */
+    public int[] getLengths() {
+        return Arrays.copyOf(lengths, lengths.length);
+    }
+
+    public boolean has(int length) {
+        return Arrays.binarySearch(lengths, length) >= 0;
+    }
+
+    /** the longest stored length that is no longer than max, or 0 if there isn't one. */
+    public int longestUpTo(int max) {
+        for (int i = lengths.length - 1; i >= 0; i--)
+            if (lengths[i] <= max)
+                return lengths[i];
+        return 0;
+    }
+
+    public static int bitsPerCodePoint(int length) {
+        return length <= Trigram.N ? Trigram.CODE_POINT_BITS : 64 / length;
+    }
+
+    /** what a code point is stored as in a gram of this length. */
+    public static int fold(int cp, int length) {
+        if (length <= Trigram.N || cp <= 0xffff)
+            return cp;
+        return (cp ^ (cp >>> 16)) & 0xffff;
+    }
+
+    /** the last code point of a gram code, as stored (folded). */
+    public static int lastCodePoint(long code, int length) {
+        return (int)(code & ((1L << bitsPerCodePoint(length)) - 1));
+    }
+
+    /** which of the NEXT_BUCKETS a stored code point falls in. mixed, so neighbouring letters land apart. */
+    public static int nextBucket(int cp) {
+        return (cp * 0x9E3779B1) >>> 29;
+    }
+
+    /** the code for a whole string, which must be exactly length code points. */
+    public static long code(String gram, int length) {
+        TrigramExtractor extractor = new TrigramExtractor(length);
+        if (gram.codePointCount(0, gram.length()) != length || extractor.extract(gram) != 1)
+            throw new IllegalArgumentException("'" + gram + "' is not " + length + " code points long");
+        return extractor.getCodes()[0];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof NGrams)) return false;
+        NGrams other = (NGrams)obj;
+        return Arrays.equals(lengths, other.lengths) && boundaries == other.boundaries && nextMasks == other.nextMasks;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(lengths) * 4 + (boundaries ? 1 : 0) + (nextMasks ? 2 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(lengths) + (boundaries ? " with boundaries" : "") + (nextMasks ? " with next masks" : "");
+    }
+}
@@ -1,23 +1,20 @@
 package headwater.trigram;
 
 import com.google.common.hash.PrimitiveSink;
-import headwater.Utils;
 import headwater.hashing.FunnelHasher;
-import headwater.hashing.Hashers;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
 
 // todo: Convert this into a generic Ngram class.
 public class Trigram implements Comparable<Trigram> {
     
     public static final int N = 3;
+    /** bits per code point in a packed trigram code. Every unicode code point (up to 0x10FFFF) fits. */
+    public static final int CODE_POINT_BITS = 21;
+    private static final int CODE_POINT_MASK = (1 << CODE_POINT_BITS) - 1;
     private static final int WIDTH_IN_BYTES = Integer.SIZE / 8 * N; // 3 ints wide (currently 12 bytes).
     
     // consider keeping them integers. the ony time they really need to be bytes is on the back end (serialization).
@@ -40,9 +37,42 @@ public class Trigram implements Comparable<Trigram> {
     // ACHTUNG! raw construction!!!
     private Trigram(byte[] buf, int start, int length) {
         System.arraycopy(buf, start, this.buf, 0, Math.min(WIDTH_IN_BYTES, buf.length - start));
-        // assume we get the zeros at the end for free.
+        // assume we get the zeros at the end for free. read from our copy so ints always agree with buf.
         for (int i = 0; i < N; i++)
-            this.ints[i] = readInt(buf, i * 4);
+            this.ints[i] = readInt(this.buf, i * 4);
+    }
+    
+    /** three code points packed into one long, first code point in the high bits. Codes are never negative. */
+    public static long pack(int first, int second, int third) {
+        return ((long)first << (2 * CODE_POINT_BITS)) | ((long)second << CODE_POINT_BITS) | third;
+    }
+    
+    /** code point i (0, 1 or 2) of a packed code. */
+    public static int codePoint(long code, int i) {
+        return (int)(code >>> ((N - 1 - i) * CODE_POINT_BITS)) & CODE_POINT_MASK;
+    }
+    
+    public static Trigram fromCode(long code) {
+        return new Trigram(new int[] {codePoint(code, 0), codePoint(code, 1), codePoint(code, 2)});
+    }
+    
+    /** the packed code, or -1 if this trigram holds something that isn't a code point (see make(byte[])). */
+    public long toCode() {
+        for (int i : ints)
+            if (i < 0 || i > CODE_POINT_MASK)
+                return -1;
+        return pack(ints[0], ints[1], ints[2]);
+    }
+    
+    /** the 12 bytes a trigram is hashed and serialized as: each code point as a big-endian int. */
+    public static void toBytes(long code, byte[] into) {
+        for (int i = 0; i < N; i++) {
+            int cp = codePoint(code, i);
+            into[i * 4] = (byte)(cp >>> 24);
+            into[i * 4 + 1] = (byte)(cp >>> 16);
+            into[i * 4 + 2] = (byte)(cp >>> 8);
+            into[i * 4 + 3] = (byte)cp;
+        }
     }
     
     public static Trigram fromBuffer(ByteBuffer bb) {
@@ -77,12 +107,10 @@ public class Trigram implements Comparable<Trigram> {
         return codePoints.size() == 0;
     }
 
-    private static final FunnelHasher<Trigram> hasher = Hashers.makeHasher(Trigram.class, Integer.MAX_VALUE);
-    
-    // todo: you only have to do this if you keep them in hash objects. useful for testing?
+    // trigrams get used as hash keys a lot (row key cache, augmentation), so this needs to be cheap.
     @Override
     public int hashCode() {
-        return hasher.hash(this).asInt();
+        return Arrays.hashCode(ints);
     }
 
     public int compareTo(Trigram o) {
@@ -133,16 +161,10 @@ public class Trigram implements Comparable<Trigram> {
     // one query though, we can get away with testing against trigrams that do not overlap.
     public static Iterable<Trigram>makeNonOverlapping(String s, AugmentationStrategy augmentation) {
         List<Trigram> list = new ArrayList<Trigram>();
-        Queue<Integer> buf = new LinkedList<Integer>();
-        for (int i = 0; i < s.length();) {
-            int cp = s.codePointAt(i);
-            buf.add(cp);
-            if (buf.size() == N) {
-                list.add(new Trigram(Utils.unbox(buf.toArray(new Integer[N]))));
-                buf.clear();
-            }
-            i += Character.charCount(cp);
-        }
+        TrigramExtractor extractor = new TrigramExtractor();
+        int count = extractor.extract(s);
+        for (int i = 0; i < count; i += N)
+            list.add(fromCode(extractor.getCodes()[i]));
         
         if (list.size() == 0 && augmentation != null) {
             for (Trigram trigram : augmentation.augment(s))
@@ -152,29 +174,31 @@ public class Trigram implements Comparable<Trigram> {
         return list;
     }
     
-    // when we index something, we usually want to index all trigrams (they overlap each other).
+    /** the trigram starting at each code point, in order. duplicates are kept so list positions line up with the string. */
+    public static List<Trigram> makeWindows(String s) {
+        List<Trigram> list = new ArrayList<Trigram>();
+        TrigramExtractor extractor = new TrigramExtractor();
+        int count = extractor.extract(s);
+        for (int i = 0; i < count; i++)
+            list.add(fromCode(extractor.getCodes()[i]));
+        return list;
+    }
+
+    // when we index something, we usually want to index all trigrams (they overlap each other). first occurrences are
+    // kept, in order.
     public static Iterable<Trigram> makeOverlapping(String s, AugmentationStrategy augmentation) {
-        Set<Integer> listHas = new HashSet<Integer>();
         List<Trigram> list = new ArrayList<Trigram>();
-        Queue<Integer> buf = new LinkedList<Integer>();
-        boolean waxing = true;
-        int[] bufAsBytes;
-        int hash;
-        for (int i = 0; i < s.length();) {
-            int cp = s.codePointAt(i);
-            if (!waxing)
-                buf.remove();
-            buf.add(cp);
-            if (buf.size() == N) {
-                waxing = false;
-                bufAsBytes = Utils.unbox(buf.toArray(new Integer[N]));
-                hash = Arrays.hashCode(bufAsBytes);
-                if (!listHas.contains(hash)) {
-                    list.add(new Trigram(bufAsBytes));
-                    listHas.add(hash);
-                }
+        TrigramExtractor extractor = new TrigramExtractor();
+        int count = extractor.extract(s);
+        long[] windows = Arrays.copyOf(extractor.getCodes(), count);
+        int distinct = extractor.extractDistinct(s);
+        boolean[] seen = new boolean[distinct];
+        for (long code : windows) {
+            int index = Arrays.binarySearch(extractor.getCodes(), 0, distinct, code);
+            if (!seen[index]) {
+                seen[index] = true;
+                list.add(fromCode(code));
             }
-            i += Character.charCount(cp);
         }
         
         if (list.size() == 0 && augmentation != null) {
@@ -0,0 +1,215 @@
+package headwater.trigram;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pulls packed trigram codes (see Trigram.pack()) out of strings into a buffer that is reused from one call to the
+ * next, so tokenizing a value doesn't allocate anything once the buffer has grown to fit. Not thread safe; keep one per
+ * thread. Other gram lengths can be extracted too, see NGrams for how they're packed.
+ *
+ * Every char that isn't half of a surrogate pair is its own code point, so ASCII and Latin-1 text (almost everything
+ * we index) never goes through codePointAt(). Raw bytes can be tokenized directly as UTF-8 or Latin-1, and a Reader
+ * is consumed a chunk at a time, so big values don't have to be turned into a String first.
+ */
+public class TrigramExtractor {
+    private static final int REPLACEMENT = 0xFFFD;
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int length;
+    private final int bitsPerCodePoint;
+    private final long windowMask;
+    private long[] codes = new long[64];
+    private int count = 0;
+    private long window = 0;
+    private int codePoints = 0;
+    private char[] chunk = null;
+
+    public TrigramExtractor() {
+        this(Trigram.N);
+    }
+
+    /** extracts grams of this many code points. */
+    public TrigramExtractor(int length) {
+        if (length < 1 || length > NGrams.MAX_LENGTH)
+            throw new IllegalArgumentException("gram lengths must be between 1 and " + NGrams.MAX_LENGTH);
+        this.length = length;
+        this.bitsPerCodePoint = NGrams.bitsPerCodePoint(length);
+        int windowBits = bitsPerCodePoint * length;
+        this.windowMask = windowBits == 64 ? -1L : (1L << windowBits) - 1;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /** every gram in s, in order, duplicates included. returns the count. */
+    public int extract(CharSequence s) {
+        int end = s.length();
+        begin(end);
+        for (int i = 0; i < end; i++) {
+            char ch = s.charAt(i);
+            if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1)))
+                push(Character.toCodePoint(ch, s.charAt(++i)));
+            else
+                push(ch);
+        }
+        return count;
+    }
+
+    /** every gram in NGrams.START + s + NGrams.END, without building that string. */
+    public int extractBounded(CharSequence s) {
+        int end = s.length();
+        begin(end + 2);
+        push(NGrams.START);
+        for (int i = 0; i < end; i++) {
+            char ch = s.charAt(i);
+            if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1)))
+                push(Character.toCodePoint(ch, s.charAt(++i)));
+            else
+                push(ch);
+        }
+        push(NGrams.END);
+        return count;
+    }
+
+    /** same as extract(CharSequence), read from r until it runs dry. r is not closed. */
+    public int extract(Reader r) throws IOException {
+        begin(0);
+        if (chunk == null)
+            chunk = new char[CHUNK_SIZE];
+        char pendingHigh = 0;
+        int read;
+        while ((read = r.read(chunk, 0, chunk.length)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                char ch = chunk[i];
+                if (pendingHigh != 0) {
+                    if (Character.isLowSurrogate(ch)) {
+                        push(Character.toCodePoint(pendingHigh, ch));
+                        pendingHigh = 0;
+                        continue;
+                    }
+                    push(pendingHigh);
+                    pendingHigh = 0;
+                }
+                // a high surrogate at the end of a chunk may be finished by the next one.
+                if (Character.isHighSurrogate(ch))
+                    pendingHigh = ch;
+                else
+                    push(ch);
+            }
+        }
+        if (pendingHigh != 0)
+            push(pendingHigh);
+        return count;
+    }
+
+    /** each byte is a code point. */
+    public int extractLatin1(byte[] bytes, int offset, int numBytes) {
+        begin(numBytes);
+        for (int i = offset; i < offset + numBytes; i++)
+            push(bytes[i] & 0xff);
+        return count;
+    }
+
+    public int extractUtf8(byte[] bytes, int offset, int numBytes) {
+        return extractUtf8(ByteBuffer.wrap(bytes, offset, numBytes));
+    }
+
+    /**
+     * Decodes the bytes between position and limit as UTF-8, without moving the position. Valid UTF-8 gives the same
+     * codes as decoding to a String first; each byte of a malformed sequence becomes U+FFFD.
+     */
+    public int extractUtf8(ByteBuffer bb) {
+        int end = bb.limit();
+        begin(end - bb.position());
+        for (int i = bb.position(); i < end;) {
+            int lead = bb.get(i);
+            if (lead >= 0) {
+                // ascii.
+                push(lead);
+                i += 1;
+                continue;
+            }
+            lead &= 0xff;
+            int more, cp, min;
+            if (lead >= 0xc2 && lead <= 0xdf) {
+                more = 1;
+                cp = lead & 0x1f;
+                min = 0x80;
+            } else if (lead >= 0xe0 && lead <= 0xef) {
+                more = 2;
+                cp = lead & 0x0f;
+                min = 0x800;
+            } else if (lead >= 0xf0 && lead <= 0xf4) {
+                more = 3;
+                cp = lead & 0x07;
+                min = 0x10000;
+            } else {
+                push(REPLACEMENT);
+                i += 1;
+                continue;
+            }
+            int k = 1;
+            for (; k <= more && i + k < end; k++) {
+                int b = bb.get(i + k);
+                if ((b & 0xc0) != 0x80)
+                    break;
+                cp = (cp << 6) | (b & 0x3f);
+            }
+            if (k <= more || cp < min || cp > Character.MAX_CODE_POINT || (cp >= 0xd800 && cp <= 0xdfff)) {
+                push(REPLACEMENT);
+                i += 1;
+                continue;
+            }
+            push(cp);
+            i += k;
+        }
+        return count;
+    }
+
+    /** the distinct grams in s, sorted by code. returns the count. */
+    public int extractDistinct(CharSequence s) {
+        extract(s);
+        return distinct();
+    }
+
+    /** sorts and dedupes whatever the last extract produced. returns the new count. */
+    public int distinct() {
+        Arrays.sort(codes, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++)
+            if (distinct == 0 || codes[distinct - 1] != codes[i])
+                codes[distinct++] = codes[i];
+        count = distinct;
+        return count;
+    }
+
+    /** the buffer. only the first getCount() codes mean anything and they're overwritten by the next extract. */
+    public long[] getCodes() {
+        return codes;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    private void begin(int expectedCodePoints) {
+        count = 0;
+        window = 0;
+        codePoints = 0;
+        if (codes.length < expectedCodePoints)
+            codes = new long[Math.max(expectedCodePoints, codes.length * 2)];
+    }
+
+    private void push(int cp) {
+        window = ((window << bitsPerCodePoint) | NGrams.fold(cp, length)) & windowMask;
+        if (++codePoints >= length) {
+            if (count == codes.length)
+                codes = Arrays.copyOf(codes, codes.length * 2);
+            codes[count++] = window;
+        }
+    }
+}
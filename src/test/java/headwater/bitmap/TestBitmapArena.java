@@ -0,0 +1,46 @@
+package headwater.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBitmapArena {
+
+    @Test
+    public void testSegmentsDoNotOverlap() {
+        BitmapArena arena = new BitmapArena(8192, 4096);
+        IBitmap[] segments = new IBitmap[10];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = arena.make();
+            segments[i].set(i, true);
+        }
+        for (int i = 0; i < segments.length; i++)
+            Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{i}, segments[i].getAsserted()));
+
+        // 4 segments per slab.
+        Assert.assertEquals(3 * 4096, arena.getAllocatedBytes());
+        Assert.assertEquals(10 * 1024, arena.getUsedBytes());
+    }
+
+    @Test
+    public void testResetReusesSlabs() {
+        BitmapArena arena = new BitmapArena(8192, 4096);
+        for (int i = 0; i < 6; i++)
+            arena.make().set(100, true);
+        arena.reset();
+        Assert.assertEquals(0, arena.getUsedBytes());
+
+        for (int i = 0; i < 6; i++)
+            Assert.assertTrue(arena.make().isEmpty());
+        Assert.assertEquals(2 * 4096, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void testSegmentsHashLikeOtherBitmaps() {
+        IBitmap segment = new BitmapArena(8192, 4096).make();
+        RoaringBitmap same = new RoaringBitmap(8192);
+        segment.set(5, 4000);
+        same.set(5, 4000);
+        Assert.assertEquals(same, segment);
+        Assert.assertEquals(same.hashCode(), segment.hashCode());
+    }
+}
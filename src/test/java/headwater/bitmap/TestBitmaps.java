@@ -6,6 +6,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -68,6 +69,29 @@ public class TestBitmaps {
         Assert.assertTrue(arrayEquals(new long[]{0, 1, 31}, wide.getAsserted()));
     }
     
+    @Test
+    public void testIteration() {
+        Assert.assertEquals(0, wide.nextSetBit(0));
+        Assert.assertEquals(1, wide.nextSetBit(1));
+        Assert.assertEquals(31, wide.nextSetBit(2));
+        Assert.assertEquals(-1, wide.nextSetBit(32));
+        Assert.assertEquals(3, wide.cardinality());
+        Assert.assertEquals(2, y.cardinality());
+        
+        final List<Long> visited = new ArrayList<Long>();
+        wide.visitAsserted(new BitObserver() {
+            public void observe(long bit) {
+                visited.add(bit);
+            }
+        });
+        Assert.assertEquals(3, visited.size());
+        Assert.assertEquals(31L, visited.get(2).longValue());
+        
+        wide.clear();
+        Assert.assertEquals(-1, wide.nextSetBit(0));
+        Assert.assertEquals(0, wide.cardinality());
+    }
+    
     @Test
     public void testAndNoMutate() {
         IBitmap and = BitmapUtils.nonMutatingAND(x, y);
@@ -87,6 +111,56 @@ public class TestBitmaps {
         Assert.assertTrue(arrayEquals(new long[]{0, 3, 7}, or.getAsserted()));
     }
     
+    @Test
+    public void testMutatingOperations() throws Exception {
+        IBitmap and = x.clone();
+        and.and(y);
+        Assert.assertTrue(arrayEquals(new long[]{3}, and.getAsserted()));
+
+        IBitmap or = x.clone();
+        or.or(y);
+        Assert.assertTrue(arrayEquals(new long[]{0, 3, 7}, or.getAsserted()));
+
+        IBitmap andNot = x.clone();
+        andNot.andNot(y);
+        Assert.assertTrue(arrayEquals(new long[]{0}, andNot.getAsserted()));
+
+        IBitmap xor = x.clone();
+        xor.xor(y);
+        Assert.assertTrue(arrayEquals(new long[]{0, 7}, xor.getAsserted()));
+
+        // operands are left alone.
+        Assert.assertTrue(arrayEquals(new long[]{0, 3}, x.getAsserted()));
+        Assert.assertTrue(arrayEquals(new long[]{3, 7}, y.getAsserted()));
+    }
+
+    @Test
+    public void testOperationsAcrossImplementations() throws Exception {
+        IBitmap other = x instanceof MemoryBitmap ? new MemoryBitmap2(16) : new MemoryBitmap(16);
+        other.set(3, 7);
+
+        IBitmap and = x.clone();
+        and.and(other);
+        Assert.assertTrue(arrayEquals(new long[]{3}, and.getAsserted()));
+
+        IBitmap or = x.clone();
+        or.or(other);
+        Assert.assertTrue(arrayEquals(new long[]{0, 3, 7}, or.getAsserted()));
+
+        IBitmap andNot = x.clone();
+        andNot.andNot(other);
+        Assert.assertTrue(arrayEquals(new long[]{0}, andNot.getAsserted()));
+
+        IBitmap xor = x.clone();
+        xor.xor(other);
+        Assert.assertTrue(arrayEquals(new long[]{0, 7}, xor.getAsserted()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOperationLengthMismatch() {
+        x.and(wide);
+    }
+
     // least significant bytes first.
     @Test
     public void testByteArray() {
@@ -235,6 +309,7 @@ public class TestBitmaps {
         return new ArrayList<Object[]>() {{
             add(buildMemoryBitmapInputs());
             add(buildMemoryBitmap2Inputs());
+            add(buildByteBufferBitmapInputs());
         }};
     }
     
@@ -250,6 +325,20 @@ public class TestBitmaps {
         };
     }
     
+    private static Object[] buildByteBufferBitmapInputs() {
+        // x and y share a slab.
+        BitmapArena arena = new BitmapArena(16, 4);
+        return new Object[] {
+                arena.make(), // x
+                arena.make(), // y
+                new ByteBufferBitmap(ByteBuffer.allocateDirect(4), 0, 4), // wide
+                new ByteBufferBitmap(ByteBuffer.allocateDirect(8), 6, 2), // padded
+                new ByteBufferBitmap(ByteBuffer.allocateDirect(4), 0, 4), // setZero
+                new ByteBufferBitmap(ByteBuffer.wrap(new byte[]{0,0,0,0,1}), 0, 5), // bm0
+                new ByteBufferBitmap(ByteBuffer.allocateDirect(5), 0, 5) // bm1
+        };
+    }
+    
     private static Object[] buildMemoryBitmap2Inputs() {
         return new Object[] {
                 new MemoryBitmap2(16), // x
@@ -0,0 +1,212 @@
+package headwater.bitmap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class TestRoaringBitmap {
+
+    @Test
+    public void testSparseSegmentIsSmall() {
+        RoaringBitmap bm = new RoaringBitmap(8192);
+        bm.set(5, 900, 8191);
+
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{5, 900, 8191}, bm.getAsserted()));
+        Assert.assertTrue(bm.toBytes().length < 32);
+        Assert.assertEquals(bm, RoaringBitmap.wrap(bm.toBytes()));
+    }
+
+    @Test
+    public void testDenseAndRunSegments() {
+        RoaringBitmap dense = new RoaringBitmap(8192);
+        RoaringBitmap runs = new RoaringBitmap(8192);
+        Random rand = new Random(2342342L);
+        for (int i = 0; i < 8192; i++) {
+            if (rand.nextBoolean())
+                dense.set(i, true);
+            if (i >= 1000 && i < 5000)
+                runs.set(i, true);
+        }
+
+        // dense data can't beat the raw layout by much, but shouldn't be much worse either (the header is 17 bytes).
+        Assert.assertTrue(dense.toBytes().length <= 1024 + 24);
+        Assert.assertEquals(dense, RoaringBitmap.wrap(dense.toBytes()));
+
+        Assert.assertTrue(runs.toBytes().length < 32);
+        RoaringBitmap wrapped = RoaringBitmap.wrap(runs.toBytes());
+        Assert.assertEquals(runs, wrapped);
+        Assert.assertEquals(4000, wrapped.getAsserted().length);
+
+        // mutating a run container still works.
+        wrapped.set(999, true);
+        wrapped.set(2000, false);
+        Assert.assertTrue(wrapped.get(999));
+        Assert.assertFalse(wrapped.get(2000));
+        Assert.assertEquals(4000, wrapped.getAsserted().length);
+    }
+
+    @Test
+    public void testFormatIsDetected() {
+        RoaringBitmap bm = new RoaringBitmap(8192);
+        bm.set(5, 900, 8191);
+        MemoryBitmap2 raw = new MemoryBitmap2(8192);
+        raw.set(5, 900, 8191);
+
+        Assert.assertTrue(RoaringBitmap.isCompact(bm.toBytes()));
+        Assert.assertFalse(RoaringBitmap.isCompact(raw.toBytes()));
+        IBitmap fromCompact = RoaringBitmap.COMPATIBLE_WRAPPER.wrap(bm.toBytes());
+        IBitmap fromRaw = RoaringBitmap.COMPATIBLE_WRAPPER.wrap(raw.toBytes());
+        Assert.assertTrue(fromCompact instanceof RoaringBitmap);
+        Assert.assertTrue(fromRaw instanceof MemoryBitmap2);
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{5, 900, 8191}, fromCompact.getAsserted()));
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{5, 900, 8191}, fromRaw.getAsserted()));
+
+        // raw bytes that happen to start with the magic still aren't a whole compact form.
+        byte[] unlucky = raw.toBytes().clone();
+        byte[] header = bm.toBytes();
+        System.arraycopy(header, 0, unlucky, 0, 5);
+        Assert.assertFalse(RoaringBitmap.isCompact(unlucky));
+
+        try {
+            RoaringBitmap.wrap(raw.toBytes());
+            Assert.fail("raw bytes aren't a RoaringBitmap");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testSerializingDoesNotChangeTheBitmap() {
+        RoaringBitmap bm = new RoaringBitmap(8192);
+        for (int i = 1000; i < 5000; i++)
+            bm.set(i, true);
+        RoaringBitmap copy = bm.clone();
+        // the chunk is written as a run either way; the live bitmap keeps working as before.
+        Assert.assertEquals(copy.toBytes().length, bm.toBytes().length);
+        Assert.assertArrayEquals(copy.toBytes(1000 / 8, 16), bm.toBytes(1000 / 8, 16));
+        bm.set(4999, false);
+        bm.set(200, true);
+        Assert.assertEquals(3999 + 1, bm.getAsserted().length);
+        Assert.assertTrue(bm.get(200));
+    }
+
+    @Test
+    public void testMultipleChunks() {
+        RoaringBitmap bm = new RoaringBitmap(4294967296L);
+        bm.set(1L, 70000L, 4294967295L);
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{1L, 70000L, 4294967295L}, bm.getAsserted()));
+        Assert.assertEquals(bm, RoaringBitmap.wrap(bm.toBytes()));
+
+        bm.set(70000L, false);
+        Assert.assertFalse(bm.get(70000L));
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{1L, 4294967295L}, bm.getAsserted()));
+    }
+
+    @Test
+    public void testOperationsMatchReference() throws Exception {
+        Random rand = new Random(98798723L);
+        int[] densities = new int[] {1, 10, 200, 4000, 8000};
+        for (int da : densities) {
+            for (int db : densities) {
+                RoaringBitmap a = new RoaringBitmap(8192), b = new RoaringBitmap(8192);
+                MemoryBitmap refA = new MemoryBitmap(8192), refB = new MemoryBitmap(8192);
+                for (int i = 0; i < da; i++) {
+                    long bit = rand.nextInt(8192);
+                    a.set(bit, true);
+                    refA.set(bit, true);
+                }
+                for (int i = 0; i < db; i++) {
+                    long bit = rand.nextInt(8192);
+                    b.set(bit, true);
+                    refB.set(bit, true);
+                }
+
+                // exercise the run containers too.
+                b = RoaringBitmap.wrap(b.toBytes());
+
+                RoaringBitmap and = a.clone(), or = a.clone(), andNot = a.clone(), xor = a.clone();
+                and.and(b);
+                or.or(b);
+                andNot.andNot(b);
+                xor.xor(b);
+
+                MemoryBitmap refAnd = refA.clone(), refOr = refA.clone(), refAndNot = refA.clone(), refXor = refA.clone();
+                refAnd.and(refB);
+                refOr.or(refB);
+                refAndNot.andNot(refB);
+                refXor.xor(refB);
+
+                Assert.assertEquals(refAnd, and);
+                Assert.assertEquals(refOr, or);
+                Assert.assertEquals(refAndNot, andNot);
+                Assert.assertEquals(refXor, xor);
+                Assert.assertEquals(refA, a);
+            }
+        }
+    }
+
+    @Test
+    public void testRawBytes() {
+        RoaringBitmap bm = new RoaringBitmap(32);
+        bm.setAll(new byte[]{3, 0, 0, (byte)0x80});
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{0, 1, 31}, bm.getAsserted()));
+
+        byte[] hi = bm.toBytes(2, 2);
+        Assert.assertEquals(0, hi[0]);
+        Assert.assertEquals(0x80, hi[1] & 0x000000ff);
+    }
+
+    @Test
+    public void testIterationAcrossContainers() {
+        RoaringBitmap bm = new RoaringBitmap(4294967296L);
+        bm.set(7L, 70000L, 4294967295L);
+        for (long i = 100000L; i < 104000L; i++)
+            bm.set(i, true);
+        bm = RoaringBitmap.wrap(bm.toBytes());
+
+        Assert.assertEquals(4003, bm.cardinality());
+        Assert.assertEquals(7L, bm.nextSetBit(0));
+        Assert.assertEquals(70000L, bm.nextSetBit(8));
+        Assert.assertEquals(100000L, bm.nextSetBit(70001L));
+        Assert.assertEquals(102000L, bm.nextSetBit(102000L));
+        Assert.assertEquals(4294967295L, bm.nextSetBit(104000L));
+        Assert.assertEquals(-1L, bm.nextSetBit(4294967296L));
+
+        final long[] count = new long[1];
+        final long[] last = new long[]{-1};
+        bm.visitAsserted(new BitObserver() {
+            public void observe(long bit) {
+                Assert.assertTrue(bit > last[0]);
+                last[0] = bit;
+                count[0] += 1;
+            }
+        });
+        Assert.assertEquals(4003, count[0]);
+        Assert.assertEquals(4294967295L, last[0]);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetOutOfBounds() {
+        RoaringBitmap bm = new RoaringBitmap(8192);
+        bm.set(3, true);
+        // would be bit 3 once the high bits are dropped.
+        bm.get(4294967296L + 3);
+    }
+
+    @Test
+    public void testEqualBitmapsHashTheSame() {
+        RoaringBitmap sparse = new RoaringBitmap(8192);
+        RoaringBitmap dense = new RoaringBitmap(8192);
+        for (long i = 0; i < 8192; i++)
+            dense.set(i, true);
+        for (long i = 0; i < 8192; i++) {
+            if (i % 1000 != 0)
+                dense.set(i, false);
+            else
+                sparse.set(i, true);
+        }
+        Assert.assertEquals(sparse, dense);
+        Assert.assertEquals(sparse.hashCode(), dense.hashCode());
+        Assert.assertFalse(sparse.hashCode() == new RoaringBitmap(8192).hashCode());
+    }
+}
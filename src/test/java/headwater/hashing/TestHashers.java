@@ -0,0 +1,66 @@
+package headwater.hashing;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import headwater.Utils;
+import headwater.trigram.Trigram;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestHashers {
+    
+    @Test
+    public void testToBitMatchesBigInteger() {
+        Random rand = new Random(3452345L);
+        long[] moduli = new long[] {
+                1, 2, 3, 7, 8192, 4294967296L, Integer.MAX_VALUE, 1000000007L, 4294967311L,
+                1L << 62, (1L << 62) + 1, Long.MAX_VALUE, Long.MAX_VALUE - 24
+        };
+        int[] lengths = new int[] {16, 8, 4, 12, 1};
+        for (int length : lengths) {
+            for (int i = 0; i < 2000; i++) {
+                byte[] hash = new byte[length];
+                rand.nextBytes(hash);
+                // make sure the extremes get covered.
+                if (i == 0)
+                    Arrays.fill(hash, (byte)0xff);
+                else if (i == 1)
+                    Arrays.fill(hash, (byte)0x7f);
+                for (long bits : moduli) {
+                    long expected = new BigInteger(hash).mod(BigInteger.valueOf(bits)).longValue();
+                    Assert.assertEquals(expected, FunnelHasher.toBit(hash, bits));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testHashersAreShared() {
+        Assert.assertSame(Hashers.makeHasher(String.class, 8192), Hashers.makeHasher(String.class, 8192));
+        Assert.assertNotSame(Hashers.makeHasher(String.class, 8192), Hashers.makeHasher(String.class, 16384));
+        Assert.assertEquals(16384, Hashers.makeHasher(String.class, 16384).getBits());
+        
+        BitHashableKey<String> key = Hashers.makeHasher(String.class, 4294967296L).hashableKey("foo");
+        long expected = new BigInteger(key.asBytes()).mod(BigInteger.valueOf(4294967296L)).longValue();
+        Assert.assertEquals(expected, key.getHashBit());
+    }
+    
+    @Test
+    public void testRowKeysAreMemoized() {
+        Trigram trigram = Trigram.makeWindows("xyz").get(0);
+        Counter hits = Utils.getMetricRegistry().counter(MetricRegistry.name(Hashers.class, "row-keys", "hits"));
+        
+        byte[] first = Hashers.getIndexRowKey("testRowKeysAreMemoized", trigram);
+        long hitsBefore = hits.getCount();
+        byte[] second = Hashers.getIndexRowKey("testRowKeysAreMemoized", Trigram.makeWindows("xyz").get(0));
+        
+        Assert.assertSame(first, second);
+        Assert.assertTrue(hits.getCount() > hitsBefore);
+        Assert.assertArrayEquals(Hashers.computeIndexRowKey("testRowKeysAreMemoized", trigram), first);
+        Assert.assertFalse(Arrays.equals(first, Hashers.getIndexRowKey("testRowKeysAreMemoized2", trigram)));
+    }
+}
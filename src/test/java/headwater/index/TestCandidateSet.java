@@ -0,0 +1,72 @@
+package headwater.index;
+
+import headwater.bitmap.IBitmap;
+import headwater.bitmap.MemoryBitmap2;
+import headwater.bitmap.RoaringBitmap;
+import headwater.bitmap.TestBitmaps;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCandidateSet {
+    
+    @Test
+    public void testUnionThenIntersect() {
+        CandidateSet a = new CandidateSet(64);
+        a.or(0, bitmap(1, 5));
+        a.or(0, bitmap(9));
+        a.or(2, bitmap(3));
+        a.or(7, bitmap(63));
+        Assert.assertEquals(5, a.cardinality());
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{1, 5, 9, 131, 511}, a.toBits()));
+        
+        CandidateSet b = new CandidateSet(64);
+        b.or(0, bitmap(5, 9, 10));
+        b.or(2, bitmap(4));
+        b.or(7, bitmap(63));
+        
+        a.and(b);
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{5, 9, 511}, a.toBits()));
+        // segment 2 intersected to nothing, so it shouldn't hang around.
+        Assert.assertEquals(2, a.getSegmentCount());
+    }
+    
+    @Test
+    public void testSourceBitmapsAreNotMutated() {
+        IBitmap live = bitmap(1, 2);
+        CandidateSet a = new CandidateSet(64);
+        a.or(0, live);
+        a.or(0, bitmap(3));
+        
+        CandidateSet b = new CandidateSet(64);
+        b.or(0, bitmap(2));
+        a.and(b);
+        
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{2}, a.toBits()));
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{1, 2}, live.getAsserted()));
+    }
+    
+    @Test
+    public void testMixedImplementations() {
+        CandidateSet a = new CandidateSet(64);
+        RoaringBitmap roaring = new RoaringBitmap(64);
+        roaring.set(4, 40);
+        a.or(1, roaring);
+        
+        CandidateSet b = new CandidateSet(64);
+        b.or(1, bitmap(40));
+        b.or(3, bitmap(40));
+        a.and(b);
+        
+        Assert.assertTrue(TestBitmaps.arrayEquals(new long[]{104}, a.toBits()));
+        
+        a.and(new CandidateSet(64));
+        Assert.assertTrue(a.isEmpty());
+        Assert.assertEquals(0, a.toBits().length);
+    }
+    
+    private static IBitmap bitmap(long... bits) {
+        IBitmap bitmap = new MemoryBitmap2(64);
+        bitmap.set(bits);
+        return bitmap;
+    }
+}
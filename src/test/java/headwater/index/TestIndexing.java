@@ -1,7 +1,10 @@
 package headwater.index;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.Sets;
 import com.netflix.astyanax.serializers.StringSerializer;
+import headwater.Utils;
 import headwater.bitmap.BitmapFactory;
 import headwater.bitmap.IBitmap;
 import headwater.bitmap.MemoryBitmap2;
@@ -9,6 +12,8 @@ import headwater.hashing.BitHashableKey;
 import headwater.hashing.Hashers;
 import headwater.io.IO;
 import headwater.io.MemoryBitmapIO;
+import headwater.io.RowObserver;
+import headwater.trigram.NGrams;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,11 +24,17 @@ import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class TestIndexing {
     
@@ -37,12 +48,7 @@ public class TestIndexing {
     @Before
     public void setup() {
         final int segmentLength = 8192;
-        this.io = new MemoryBitmapIO().withBitmapFactory(new BitmapFactory() {
-            @Override
-            public IBitmap make() {
-                return new MemoryBitmap2(segmentLength);
-            }
-        });
+        this.io = freshIO();
 //        this.jack = new PureMemoryJack<String, String, String>();
         this.jack = new IOJack<String, String, String>(StringSerializer.get());
         this.reader = new StandardIndexReader<String, String>(segmentLength).withIO(io).withDataLookup(jack).withKeyLookup(jack);
@@ -59,6 +65,31 @@ public class TestIndexing {
         writer.add("5", "0", "fffggghhh");
     }
     
+    private static IO<Long, IBitmap> freshIO() {
+        return new MemoryBitmapIO().withBitmapFactory(new BitmapFactory() {
+            public IBitmap make() {
+                return new MemoryBitmap2(8192);
+            }
+        });
+    }
+    
+    // points io, writer and reader at an empty index of their own. values still go to (and are looked up in) jack.
+    private void freshIndex(NGrams grams, RowStatistics statistics) {
+        io = freshIO();
+        writer = new StandardIndexWriter<String, String>(8192, bitmapLength).withIO(io).withObserver(jack).withGrams(grams).withStatistics(statistics);
+        reader = new StandardIndexReader<String, String>(8192).withIO(io).withDataLookup(jack).withKeyLookup(jack).withGrams(grams).withStatistics(statistics);
+    }
+    
+    // looks values up in jack, noting each key in lookedUp.
+    private DataLookup<String, String, String> countingLookup(final List<String> lookedUp) {
+        return new DataLookup<String, String, String>() {
+            public String lookup(String key, String field) {
+                lookedUp.add(key);
+                return jack.lookup(key, field);
+            }
+        };
+    }
+    
     @Test
     public void testSimple() {
         Assert.assertTrue(reader.globSearch("0", "*bbb*").size() > 0);
@@ -72,6 +103,341 @@ public class TestIndexing {
         Assert.assertEquals(0, reader.globSearch("0", "*c*b*").size());
     }
     
+    @Test
+    public void testWithStatistics() {
+        RowStatistics stats = new MemoryRowStatistics();
+        freshIndex(NGrams.TRIGRAMS, stats);
+        writer.add("6", "0", "ggghhhiii");
+        writer.add("7", "0", "hhhiiijjj");
+        
+        Assert.assertEquals(Sets.newHashSet("6", "7"), Sets.newHashSet(reader.globSearch("0", "*hhhiii*")));
+        Assert.assertEquals(Sets.newHashSet("7"), Sets.newHashSet(reader.globSearch("0", "*iiijj*")));
+        // a trigram nobody has seen makes for an empty plan term.
+        Assert.assertEquals(0, reader.globSearch("0", "*xyzhhh*").size());
+    }
+    
+    @Test
+    public void testMixedGramLengths() {
+        freshIndex(new NGrams(2, 3, 4), new NullRowStatistics());
+        writer.add("a", "1", "the thing");
+        writer.add("b", "1", "nothing here");
+        writer.add("c", "1", "xyz");
+        
+        Assert.assertEquals(Sets.newHashSet("a", "b"), Sets.newHashSet(reader.globSearch("1", "*thing*")));
+        Assert.assertEquals(Sets.newHashSet("a"), Sets.newHashSet(reader.globSearch("1", "the*")));
+        Assert.assertEquals(Sets.newHashSet("b"), Sets.newHashSet(reader.globSearch("1", "*re")));
+        Assert.assertEquals(Sets.newHashSet("c"), Sets.newHashSet(reader.globSearch("1", "*yz*")));
+        Assert.assertEquals(0, reader.globSearch("1", "*zy*").size());
+    }
+    
+    @Test
+    public void testBoundaries() {
+        freshIndex(new NGrams(1, 2, 3).withBoundaries(), new NullRowStatistics());
+        writer.add("a", "2", "foobar");
+        writer.add("b", "2", "barfoo");
+        writer.add("c", "2", "x7");
+        writer.add("d", "2", "f");
+        
+        Assert.assertEquals(Sets.newHashSet("a"), Sets.newHashSet(reader.globSearch("2", "foo*")));
+        Assert.assertEquals(Sets.newHashSet("b"), Sets.newHashSet(reader.globSearch("2", "*foo")));
+        Assert.assertEquals(Sets.newHashSet("a", "b"), Sets.newHashSet(reader.globSearch("2", "*oo*")));
+        Assert.assertEquals(Sets.newHashSet("a", "d"), Sets.newHashSet(reader.globSearch("2", "f*")));
+        Assert.assertEquals(Sets.newHashSet("d"), Sets.newHashSet(reader.globSearch("2", "f")));
+        Assert.assertEquals(Sets.newHashSet("c"), Sets.newHashSet(reader.globSearch("2", "*7*")));
+        Assert.assertEquals(Sets.newHashSet("c"), Sets.newHashSet(reader.globSearch("2", "x?")));
+        
+        // $ matches before a trailing newline too.
+        writer.add("e", "2", "xabc\n");
+        Assert.assertEquals(Sets.newHashSet("e"), Sets.newHashSet(reader.regexSearch("2", "abc$")));
+    }
+    
+    @Test
+    public void testPrefixAndSuffixSearch() {
+        freshIndex(NGrams.TRIGRAMS.withBoundaries(), new NullRowStatistics());
+        writer.add("a", "host", "web01.dfw");
+        writer.add("b", "host", "web02.ord");
+        writer.add("c", "host", "db01.web");
+        writer.add("d", "host", "web*.lon");
+        
+        Assert.assertEquals(Sets.newHashSet("a", "b", "d"), Sets.newHashSet(reader.prefixSearch("host", "web")));
+        Assert.assertEquals(Sets.newHashSet("d"), Sets.newHashSet(reader.prefixSearch("host", "web*")));
+        Assert.assertEquals(Sets.newHashSet("c"), Sets.newHashSet(reader.suffixSearch("host", ".web")));
+        Assert.assertEquals(Sets.newHashSet("a", "c"), Sets.newHashSet(reader.globSearch("host", "*01*")));
+    }
+    
+    @Test
+    public void testNextMasks() {
+        List<String> lookedUp = new ArrayList<String>();
+        freshIndex(NGrams.TRIGRAMS.withNextMasks(), new NullRowStatistics());
+        reader.withDataLookup(countingLookup(lookedUp));
+        writer.add("a", "3", "xxabcdefxx");
+        writer.add("b", "3", "abcz def");
+        writer.add("c", "3", "abc");
+        Assert.assertFalse(NGrams.nextBucket('z') == NGrams.nextBucket('d'));
+        
+        // b has both trigrams, but abc isn't followed by anything like d.
+        Assert.assertEquals(Sets.newHashSet("a"), Sets.newHashSet(reader.globSearch("3", "*abcdef*")));
+        Assert.assertEquals(Arrays.asList("a"), lookedUp);
+        Assert.assertEquals(Sets.newHashSet("a", "b", "c"), Sets.newHashSet(reader.globSearch("3", "*abc*")));
+        Assert.assertEquals(Sets.newHashSet("b"), Sets.newHashSet(reader.globSearch("3", "*bcz*")));
+    }
+    
+    @Test
+    public void testRegexSearch() {
+        writer.add("6", "0", "error: disk full");
+        writer.add("7", "0", "warning: disk 93% full");
+        writer.add("8", "0", "errors are fine");
+        
+        Assert.assertEquals(Sets.newHashSet("6", "7"), Sets.newHashSet(reader.regexSearch("0", "(error|warning): disk")));
+        Assert.assertEquals(Sets.newHashSet("7"), Sets.newHashSet(reader.regexSearch("0", "disk \\d+% full")));
+        Assert.assertEquals(Sets.newHashSet("6", "8"), Sets.newHashSet(reader.regexSearch("0", "^errors?\\b")));
+        Assert.assertEquals(Sets.newHashSet("0", "1"), Sets.newHashSet(reader.regexSearch("0", "b{3}c")));
+        Assert.assertEquals(0, reader.regexSearch("0", "full$x").size());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnplannableRegex() {
+        reader.regexSearch("0", "\\d+.*");
+    }
+    
+    @Test
+    public void testBooleanQueries() {
+        writer.add("0", "host", "web01.dfw");
+        writer.add("1", "host", "web02.ord");
+        writer.add("2", "host", "db01.dfw");
+        
+        Assert.assertEquals(Sets.newHashSet("0", "1"), Sets.newHashSet(reader.search(Query.and(
+                Query.glob("0", "*bbb*"), Query.glob("host", "web*")))));
+        Assert.assertEquals(Sets.newHashSet("0", "2"), Sets.newHashSet(reader.search(Query.or(
+                Query.glob("0", "*aaa*"), Query.glob("host", "*dfw")))));
+        Assert.assertEquals(Sets.newHashSet("1"), Sets.newHashSet(reader.search(Query.and(
+                Query.glob("0", "*ccc*"), Query.not(Query.glob("host", "*dfw"))))));
+        Assert.assertEquals(Sets.newHashSet("1", "2"), Sets.newHashSet(reader.search(Query.and(
+                Query.regex("0", "c{3}d"), Query.or(Query.glob("host", "db01*"), Query.glob("host", "*ord"))))));
+    }
+    
+    @Test
+    public void testEmptyOperandShortCircuits() {
+        List<String> lookedUp = new ArrayList<String>();
+        StandardIndexReader<String, String> reader = new StandardIndexReader<String, String>(8192).withIO(io).withKeyLookup(jack)
+                .withDataLookup(countingLookup(lookedUp));
+        Assert.assertEquals(0, reader.search(Query.and(Query.glob("0", "*ddd*"), Query.glob("0", "*zzz*"))).size());
+        Assert.assertEquals(0, lookedUp.size());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegationAlone() {
+        reader.search(Query.not(Query.glob("0", "*aaa*")));
+    }
+    
+    @Test
+    public void testPaging() {
+        List<String> lookedUp = new ArrayList<String>();
+        final int[] columnsRead = new int[1];
+        IO<Long, IBitmap> io = new MemoryBitmapIO() {
+            @Override
+            public SortedMap<Long, IBitmap> rangeGet(byte[] key, Long from, int limit) throws Exception {
+                SortedMap<Long, IBitmap> found = super.rangeGet(key, from, limit);
+                columnsRead[0] += found.size();
+                return found;
+            }
+            
+            @Override
+            public Map<Long, IBitmap> bulkGet(byte[] key, Collection<Long> cols) throws Exception {
+                Map<Long, IBitmap> found = super.bulkGet(key, cols);
+                columnsRead[0] += found.size();
+                return found;
+            }
+        }.withBitmapFactory(new BitmapFactory() {
+            public IBitmap make() {
+                return new MemoryBitmap2(8192);
+            }
+        });
+        StandardIndexWriter<String, String> writer = new StandardIndexWriter<String, String>(8192, bitmapLength).withIO(io).withObserver(jack);
+        StandardIndexReader<String, String> reader = new StandardIndexReader<String, String>(8192).withIO(io).withKeyLookup(jack)
+                .withDataLookup(countingLookup(lookedUp));
+        for (int i = 0; i < 600; i++)
+            writer.add("k" + i, "4", (i % 3 == 0 ? "display " : "dismal ") + i);
+        
+        List<String> all = new ArrayList<String>(reader.globSearch("4", "*dis*"));
+        Assert.assertEquals(600, all.size());
+        
+        // one row, with a segment for (nearly) every key. only its first page of segments gets read.
+        lookedUp.clear();
+        columnsRead[0] = 0;
+        Assert.assertEquals(50, reader.globPage("4", "*dis*", null, 50).getKeys().size());
+        Assert.assertTrue(lookedUp.size() < 600);
+        Assert.assertTrue(columnsRead[0] < 500);
+        
+        lookedUp.clear();
+        List<String> first = reader.globSearch("4", "*display*", 0, 50);
+        Assert.assertEquals(50, first.size());
+        // stopped well before every candidate was checked.
+        Assert.assertTrue(lookedUp.size() < 600);
+        
+        List<String> pages = new ArrayList<String>(first);
+        for (int offset = 50; ; offset += 50) {
+            List<String> page = reader.globSearch("4", "*display*", offset, 50);
+            pages.addAll(page);
+            if (page.size() < 50)
+                break;
+        }
+        Assert.assertEquals(200, pages.size());
+        Assert.assertEquals(200, Sets.newHashSet(pages).size());
+        Assert.assertEquals(Sets.newHashSet(reader.globSearch("4", "*display*")), Sets.newHashSet(pages));
+        Assert.assertFalse(reader.globIterator("4", "*nothing here*").hasNext());
+        
+        // positions pick up where the last page stopped, so every candidate is only looked up about once.
+        lookedUp.clear();
+        List<String> resumed = new ArrayList<String>();
+        ResultPage<String> page = reader.globPage("4", "*display*", null, 30);
+        resumed.addAll(page.getKeys());
+        while (page.getNext() != null) {
+            page = reader.globPage("4", "*display*", page.getNext(), 30);
+            resumed.addAll(page.getKeys());
+        }
+        Assert.assertEquals(pages, resumed);
+        Assert.assertTrue(lookedUp.size() < 250);
+        Assert.assertTrue(reader.globPage("4", "*display*", null, 200).getNext() == null);
+    }
+    
+    @Test
+    public void testCountAndExists() {
+        Assert.assertEquals(2, reader.globCount("0", "*b*c*", true));
+        Assert.assertTrue(reader.globCount("0", "*b*c*", false) >= 2);
+        // *bbbddd* has both trigrams in key 1, which only verification rules out.
+        Assert.assertEquals(0, reader.globCount("0", "*bbbddd*", true));
+        Assert.assertEquals(1, reader.globCount("0", "*bbbddd*", false));
+        Assert.assertEquals(0, reader.globCount("0", "*xyz*", false));
+        
+        Assert.assertTrue(reader.globExists("0", "*ggg*"));
+        Assert.assertFalse(reader.globExists("0", "*bbbddd*"));
+    }
+    
+    @Test
+    public void testCountWithoutLookups() {
+        // "*" rules nothing out, so neither count could be right without a full scan.
+        for (boolean verified : new boolean[] {false, true}) {
+            try {
+                reader.globCount("0", "*", verified);
+                Assert.fail("counted " + verified);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            reader.globExists("0", "**");
+            Assert.fail("exists");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+    
+    @Test
+    public void testParallel() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        StandardIndexReader<String, String> parallel = new StandardIndexReader<String, String>(8192).withIO(io).withDataLookup(jack).withKeyLookup(jack).withParallelism(pool);
+        for (int i = 0; i < 2000; i++)
+            writer.add("k" + i, "4", (i % 3 == 0 ? "display " : "dismal ") + i + (i % 7 == 0 ? " seven" : ""));
+        
+        for (String glob : new String[] {"*display*", "*dis*1*", "*seven", "*dismal*seven*", "*nope*", "*12*"})
+            Assert.assertEquals(glob, Sets.newHashSet(reader.globSearch("4", glob)), Sets.newHashSet(parallel.globSearch("4", glob)));
+        Assert.assertEquals(reader.globCount("4", "*display*", false), parallel.globCount("4", "*display*", false));
+        
+        Query<String> query = Query.and(Query.glob("4", "*seven*"), Query.or(Query.glob("4", "*display*"), Query.glob("4", "*99*")));
+        Assert.assertEquals(Sets.newHashSet(reader.search(query)), Sets.newHashSet(parallel.search(query)));
+        pool.shutdown();
+    }
+    
+    @Test
+    public void testBulkVerification() {
+        final int[] calls = new int[2];
+        BulkDataLookup<String, String, String> lookup = new BulkDataLookup<String, String, String>() {
+            public Map<String, String> lookupAll(Collection<String> keys, String field) {
+                calls[0] += 1;
+                Map<String, String> found = new HashMap<String, String>();
+                for (String key : keys)
+                    found.put(key, jack.lookup(key, field));
+                return found;
+            }
+            
+            public String lookup(String key, String field) {
+                calls[1] += 1;
+                return jack.lookup(key, field);
+            }
+        };
+        for (int i = 0; i < 95; i++)
+            writer.add("k" + i, "4", "dismal " + i);
+        StandardIndexReader<String, String> reader = new StandardIndexReader<String, String>(8192).withIO(io).withKeyLookup(jack).withDataLookup(lookup).withVerifyBatchSize(10);
+        Assert.assertEquals(95, reader.globSearch("4", "*dismal*").size());
+        Assert.assertEquals(10, calls[0]);
+        Assert.assertEquals(0, calls[1]);
+        
+        // one lookupAll() per batch for each field the query reads, NOTs included.
+        calls[0] = 0;
+        Query<String> query = Query.and(Query.glob("4", "*dismal*"), Query.not(Query.glob("5", "*xyz*")));
+        Assert.assertEquals(95, reader.search(query).size());
+        Assert.assertEquals(20, calls[0]);
+        Assert.assertEquals(0, calls[1]);
+    }
+    
+    @Test
+    public void testPlanCache() {
+        Counter hits = Utils.getMetricRegistry().counter(MetricRegistry.name(PlanCache.class, "plans", "hits"));
+        StandardIndexReader<String, String> uncached = new StandardIndexReader<String, String>(8192).withIO(io).withDataLookup(jack).withKeyLookup(jack).withPlanCacheSize(0);
+        long before = hits.getCount();
+        Collection<String> first = reader.globSearch("0", "*b*c*");
+        Assert.assertEquals(Sets.newHashSet(first), Sets.newHashSet(reader.globSearch("0", "*b*c*")));
+        Assert.assertTrue(hits.getCount() > before);
+        Assert.assertEquals(Sets.newHashSet(first), Sets.newHashSet(uncached.globSearch("0", "*b*c*")));
+        
+        // plans are cached, results aren't.
+        writer.add("9", "0", "bbbxccc");
+        Assert.assertEquals(first.size() + 1, reader.globSearch("0", "*b*c*").size());
+    }
+    
+    @Test
+    public void testResultCache() {
+        CachingIndexReader<String, String> cached = new CachingIndexReader<String, String>(reader);
+        writer.withRowObserver(cached);
+        Counter hits = Utils.getMetricRegistry().counter(MetricRegistry.name(CachingIndexReader.class, "results", "hits"));
+        
+        Collection<String> first = cached.globSearch("0", "*b*c*");
+        Query<String> query = Query.and(Query.glob("0", "*b*"), Query.not(Query.glob("0", "*aaa*")));
+        Assert.assertEquals(Sets.newHashSet(reader.search(query)), Sets.newHashSet(cached.search(query)));
+        long before = hits.getCount();
+        Assert.assertEquals(Sets.newHashSet(first), Sets.newHashSet(cached.globSearch("0", "*b*c*")));
+        Assert.assertEquals(Sets.newHashSet(reader.search(query)), Sets.newHashSet(cached.search(query)));
+        Assert.assertEquals(before + 2, hits.getCount());
+        
+        // nothing in the other field is read by these.
+        writer.add("9", "1", "bbbxccc");
+        Assert.assertEquals(first.size(), cached.globSearch("0", "*b*c*").size());
+        Assert.assertEquals(before + 3, hits.getCount());
+        
+        writer.add("9", "0", "bbbxccc");
+        Assert.assertEquals(first.size() + 1, cached.globSearch("0", "*b*c*").size());
+        Assert.assertEquals(first.size() + 1, cached.globCount("0", "*b*c*", true));
+        Assert.assertEquals(Sets.newHashSet(reader.search(query)), Sets.newHashSet(cached.search(query)));
+        Assert.assertEquals(before + 3, hits.getCount());
+    }
+    
+    @Test
+    public void testRowObserver() {
+        final List<Collection<byte[]>> calls = new ArrayList<Collection<byte[]>>();
+        writer.withRowObserver(new RowObserver() {
+            public void observeRows(Collection<byte[]> rows) {
+                calls.add(rows);
+            }
+        });
+        // repeated trigrams are still one row.
+        writer.add("9", "0", "aaaaaabbb");
+        Assert.assertEquals(1, calls.size());
+        Set<ByteBuffer> rows = new HashSet<ByteBuffer>();
+        for (byte[] row : calls.get(0))
+            rows.add(ByteBuffer.wrap(row));
+        Assert.assertEquals(calls.get(0).size(), rows.size());
+        Assert.assertTrue(rows.contains(ByteBuffer.wrap(Hashers.getIndexRowKey("0", 3, NGrams.code("aaa", 3)))));
+    }
+    
     @Test
     public void testLargeSubstring() {
         Assert.assertTrue(reader.globSearch("0", "*ccdddee*").size() > 0);
@@ -0,0 +1,165 @@
+package headwater.index;
+
+import com.google.common.collect.Sets;
+import headwater.hashing.Hashers;
+import headwater.trigram.NGrams;
+import headwater.trigram.Trigram;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestQueryPlanner {
+    
+    @Test
+    public void testLiterals() {
+        Assert.assertEquals(Arrays.asList("abc", "de"), QueryPlanner.literals("*abc*de*"));
+        Assert.assertEquals(Arrays.asList("ab", "cd"), QueryPlanner.literals("ab?cd"));
+        Assert.assertEquals(Arrays.asList("ab", "cd"), QueryPlanner.literals("ab[]xy]cd"));
+        Assert.assertEquals(Arrays.asList("ab", "cd"), QueryPlanner.literals("ab[!]x]cd"));
+        Assert.assertEquals(Arrays.asList("a*b"), QueryPlanner.literals("a\\*b"));
+        Assert.assertEquals(0, QueryPlanner.literals("***").size());
+    }
+    
+    @Test
+    public void testBoundedLiterals() {
+        String start = String.valueOf(NGrams.START), end = String.valueOf(NGrams.END);
+        Assert.assertEquals(Arrays.asList(start + "foo"), QueryPlanner.literals("foo*", true));
+        Assert.assertEquals(Arrays.asList("bar" + end), QueryPlanner.literals("*bar", true));
+        Assert.assertEquals(Arrays.asList(start + "a", "b" + end), QueryPlanner.literals("a*b", true));
+        Assert.assertEquals(Arrays.asList("ab"), QueryPlanner.literals("[xy]ab[c]", true));
+        Assert.assertEquals(Arrays.asList(start + "a*" + end), QueryPlanner.literals("a\\*", true));
+        Assert.assertEquals(0, QueryPlanner.literals("", true).size());
+    }
+    
+    @Test
+    public void testEscape() {
+        String literal = "a*b?[c]\\d";
+        Assert.assertEquals(Arrays.asList(literal), QueryPlanner.literals(QueryPlanner.escape(literal)));
+        Assert.assertEquals("plain", QueryPlanner.escape("plain"));
+    }
+    
+    @Test
+    public void testAnchoredPlans() {
+        QueryPlanner<String> planner = new QueryPlanner<String>().withGrams(NGrams.TRIGRAMS.withBoundaries());
+        // "\u0002web" is covered by the rows for "\u0002we" and "web".
+        List<QueryPlanner.Term> terms = planner.plan("f", "web*");
+        Assert.assertEquals(2, terms.size());
+        Set<String> rows = new HashSet<String>();
+        for (QueryPlanner.Term term : terms)
+            rows.add(Arrays.toString(term.getRowKeys().get(0)));
+        Assert.assertTrue(rows.contains(Arrays.toString(Hashers.getIndexRowKey("f", NGrams.code(NGrams.START + "we", 3)))));
+        
+        // floating parcels stay floating.
+        Assert.assertEquals(1, new QueryPlanner<String>().withGrams(NGrams.TRIGRAMS.withBoundaries()).plan("f", "*web*").size());
+    }
+    
+    @Test
+    public void testNextMasks() {
+        QueryPlanner<String> planner = new QueryPlanner<String>().withGrams(NGrams.TRIGRAMS.withNextMasks());
+        List<QueryPlanner.Term> terms = planner.plan("f", "*abcdef*");
+        Assert.assertEquals(2, terms.size());
+        Set<String> rows = new HashSet<String>();
+        for (QueryPlanner.Term term : terms)
+            rows.add(Arrays.toString(term.getRowKeys().get(0)));
+        // abc has a known successor, def doesn't.
+        byte[] abcd = Hashers.getNextMaskRowKey("f", 3, NGrams.code("abc", 3), NGrams.nextBucket('d'));
+        Assert.assertEquals(Sets.newHashSet(Arrays.toString(abcd), Arrays.toString(Hashers.getIndexRowKey("f", NGrams.code("def", 3)))), rows);
+        Assert.assertFalse(Arrays.equals(abcd, Hashers.getIndexRowKey("f", NGrams.code("abc", 3))));
+    }
+    
+    @Test
+    public void testBoundariesMakeShortPlans() {
+        QueryPlanner<String> planner = new QueryPlanner<String>().withGrams(new NGrams(1, 2, 3).withBoundaries());
+        Assert.assertEquals(2, planner.plan("f", "foo*").size());
+        Assert.assertEquals(1, planner.plan("f", "*ab*").size());
+        Assert.assertEquals(1, planner.plan("f", "a*").size());
+        Assert.assertEquals(1, planner.plan("f", "*7*").size());
+        for (QueryPlanner.Term term : planner.plan("f", "*a*b*c*"))
+            Assert.assertEquals(1, term.getRowKeys().size());
+    }
+    
+    @Test
+    public void testCoverUsesFewestTrigrams() {
+        QueryPlanner<String> planner = new QueryPlanner<String>();
+        Assert.assertEquals(2, planner.plan("f", "*abcdef*").size());
+        Assert.assertEquals(3, planner.plan("f", "*abcdefg*").size());
+        Assert.assertEquals(1, planner.plan("f", "*abc*abc*").size());
+    }
+    
+    @Test
+    public void testShortFragmentsOnlyWhenNeeded() {
+        QueryPlanner<String> planner = new QueryPlanner<String>();
+        Assert.assertEquals(1, planner.plan("f", "*abc*d*").size());
+        
+        List<QueryPlanner.Term> plan = planner.plan("f", "*ab*d*");
+        Assert.assertEquals(2, plan.size());
+        Assert.assertTrue(plan.get(0).getRowKeys().size() > 1);
+    }
+    
+    @Test
+    public void testLongestGramsAreUsed() {
+        QueryPlanner<String> planner = new QueryPlanner<String>().withGrams(new NGrams(2, 3, 4));
+        Assert.assertEquals(2, planner.plan("f", "*abcdefgh*").size());
+        Assert.assertArrayEquals(Hashers.computeIndexRowKey("f", 3, NGrams.code("abc", 3)), planner.plan("f", "*abc*").get(0).getRowKeys().get(0));
+        
+        // no augmentation needed for two characters.
+        List<QueryPlanner.Term> plan = planner.plan("f", "*ab*");
+        Assert.assertEquals(1, plan.size());
+        Assert.assertEquals(1, plan.get(0).getRowKeys().size());
+        
+        // without trigrams there's nothing to augment into.
+        Assert.assertEquals(0, new QueryPlanner<String>().withGrams(new NGrams(2, 4)).plan("f", "*a*").size());
+    }
+    
+    @Test
+    public void testRarestRowsFirst() {
+        MemoryRowStatistics stats = new MemoryRowStatistics();
+        increment(stats, "abc", 50);
+        increment(stats, "bcd", 100);
+        increment(stats, "cde", 10);
+        increment(stats, "def", 1);
+        increment(stats, "efg", 20);
+        
+        // abc and efg are needed no matter what. def is the cheapest way to cover the 'd'.
+        List<QueryPlanner.Term> plan = new QueryPlanner<String>().withStatistics(stats).plan("f", "*abcdefg*");
+        Assert.assertEquals(3, plan.size());
+        Assert.assertArrayEquals(rowKey("def"), plan.get(0).getRowKeys().get(0));
+        Assert.assertArrayEquals(rowKey("efg"), plan.get(1).getRowKeys().get(0));
+        Assert.assertArrayEquals(rowKey("abc"), plan.get(2).getRowKeys().get(0));
+    }
+    
+    @Test
+    public void testStatisticsFromManyThreads() throws InterruptedException {
+        final MemoryRowStatistics stats = new MemoryRowStatistics();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            // no locks, but no increments get lost either.
+            threads[i] = new Thread() {
+                public void run() {
+                    increment(stats, "abc", 1000);
+                    increment(stats, "bcd", 10);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        // counts go by the bytes of the key, not the array.
+        Assert.assertEquals(4000, stats.estimate(rowKey("abc").clone()));
+        Assert.assertEquals(40, stats.estimate(rowKey("bcd")));
+        Assert.assertEquals(0, stats.estimate(rowKey("cde")));
+    }
+    
+    private static void increment(RowStatistics stats, String trigram, int times) {
+        for (int i = 0; i < times; i++)
+            stats.increment(rowKey(trigram));
+    }
+    
+    private static byte[] rowKey(String s) {
+        return Hashers.computeIndexRowKey("f", Trigram.makeWindows(s).get(0));
+    }
+}
@@ -0,0 +1,84 @@
+package headwater.index;
+
+import headwater.trigram.NGrams;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestRegexAnalyzer {
+    
+    private static Set<Set<String>> clauses(String regex) {
+        return new HashSet<Set<String>>(RegexAnalyzer.clauses(regex, false));
+    }
+    
+    // each clause is its literals, comma separated.
+    private static Set<Set<String>> expect(String... clauses) {
+        Set<Set<String>> expected = new HashSet<Set<String>>();
+        for (String clause : clauses)
+            expected.add(new HashSet<String>(Arrays.asList(clause.split(","))));
+        return expected;
+    }
+    
+    @Test
+    public void testLiterals() {
+        Assert.assertEquals(expect("hello"), clauses("hello"));
+        Assert.assertEquals(expect("foo", "bar"), clauses("foo.*bar"));
+        Assert.assertEquals(expect("a.b"), clauses("a\\.b"));
+        Assert.assertEquals(expect("ab", "cd"), clauses("ab\\d+cd"));
+    }
+    
+    @Test
+    public void testAlternation() {
+        Assert.assertEquals(expect("abcx,abdex"), clauses("ab(c|de)x"));
+        Assert.assertEquals(expect("error,warn"), clauses("error|warn"));
+        Assert.assertEquals(expect("xa,xb,xc"), clauses("x[abc]"));
+        // one side could be anything, so nothing is required.
+        Assert.assertEquals(0, clauses("foo|.").size());
+    }
+    
+    @Test
+    public void testRepetition() {
+        Assert.assertEquals(expect("ab", "d"), clauses("ab(xyz)*d"));
+        Assert.assertEquals(expect("abxyz", "d"), clauses("ab(xyz)+d"));
+        Assert.assertEquals(expect("abd,abxd"), clauses("abx?d"));
+        Assert.assertEquals(expect("abb", "c"), clauses("ab{2,3}?c"));
+        Assert.assertEquals(0, clauses("(abc)*").size());
+    }
+    
+    @Test
+    public void testAnchors() {
+        String start = String.valueOf(NGrams.START), end = String.valueOf(NGrams.END);
+        // $ (and \\Z) can also match just before a newline at the end. \\z can't.
+        List<Set<String>> clauses = RegexAnalyzer.clauses("^web\\d+$", true);
+        Assert.assertEquals(expect(start + "web", end + ",\n" + end), new HashSet<Set<String>>(clauses));
+        Assert.assertEquals(expect("abc" + end + ",abc\n" + end), new HashSet<Set<String>>(RegexAnalyzer.clauses("abc\\Z", true)));
+        Assert.assertEquals(expect("abc" + end), new HashSet<Set<String>>(RegexAnalyzer.clauses("abc\\z", true)));
+        Assert.assertEquals(expect("web"), clauses("^web"));
+    }
+    
+    @Test
+    public void testEscapes() {
+        // every char of these belongs to the escape.
+        Assert.assertEquals(expect("ab\ncd"), clauses("ab\\012cd"));
+        // octal stops after three digits.
+        Assert.assertEquals(expect("ab\n3cd"), clauses("ab\\0123cd"));
+        Assert.assertEquals(expect("ab\u0000cd"), clauses("ab\\0cd"));
+        Assert.assertEquals(expect("ab\ncd"), clauses("ab\\cJcd"));
+        Assert.assertEquals(expect("ab\ncd"), clauses("ab\\cjcd"));
+        Assert.assertEquals(expect("a\u00abc"), clauses("a\\xabc"));
+        Assert.assertEquals(expect("a\u0004z"), clauses("a\\x4z"));
+        Assert.assertEquals(expect("ab", "cd"), clauses("ab\\x{263A}cd"));
+        // backreferences (or octal, without enough groups) are anything.
+        Assert.assertEquals(expect("ab", "cd"), clauses("ab\\12cd"));
+        Assert.assertEquals(expect("ab", "cd"), clauses("(ab)\\1cd"));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testFlagsRefused() {
+        RegexAnalyzer.clauses("(?i)hello", false);
+    }
+}
@@ -0,0 +1,54 @@
+package headwater.index;
+
+import org.apache.oro.text.GlobCompiler;
+import org.apache.oro.text.regex.Perl5Matcher;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestValueMatchers {
+    
+    private static final String[] VALUES = {
+        "", "a", "ab", "abab", "aab", "ba", "foo", "foobar", "barfoo", "xfoox", "fofoo", "a]b", "a{b}", "a.b",
+        "foo\nbar", "foo\n", "abcab", "acb"
+    };
+    
+    // the literal matcher has to agree with ORO about everything.
+    @Test
+    public void testLiteralGlobsAgreeWithOro() throws Exception {
+        String[] globs = {
+            "", "*", "**", "a", "foo", "foo*", "*foo", "*foo*", "*bar", "a*b", "a**b", "ab*ab", "*ab*ab*", "f*o*o",
+            "a]b", "a{b}", "a.b", "*.*", "foo*bar", "*a", "a*"
+        };
+        Perl5Matcher oro = new Perl5Matcher();
+        for (String glob : globs) {
+            Assert.assertTrue(glob, ValueMatchers.isLiteral(glob));
+            ValueMatcher matcher = new ValueMatchers.LiteralGlobMatcher(glob);
+            for (String value : VALUES)
+                Assert.assertEquals(glob + " vs " + value, oro.matches(value, new GlobCompiler().compile(glob)), matcher.matches(value));
+        }
+    }
+    
+    @Test
+    public void testOtherGlobs() {
+        Assert.assertFalse(ValueMatchers.isLiteral("a?b"));
+        Assert.assertFalse(ValueMatchers.isLiteral("[ab]*"));
+        Assert.assertFalse(ValueMatchers.isLiteral("a\\*b"));
+        Assert.assertTrue(ValueMatchers.glob("a?b").matches("acb"));
+        Assert.assertFalse(ValueMatchers.glob("a?b").matches("ab"));
+        Assert.assertTrue(ValueMatchers.glob("[ab]*").matches("barfoo"));
+        Assert.assertTrue(ValueMatchers.glob("a\\*b").matches("a*b"));
+        Assert.assertFalse(ValueMatchers.glob("a\\*b").matches("aab"));
+    }
+    
+    @Test
+    public void testRegex() {
+        Assert.assertTrue(ValueMatchers.regex("o+b").matches("foobar"));
+        Assert.assertFalse(ValueMatchers.regex("^oob").matches("foobar"));
+    }
+    
+    @Test
+    public void testCached() {
+        Assert.assertSame(ValueMatchers.glob("*foo*"), ValueMatchers.glob("*foo*"));
+        Assert.assertSame(ValueMatchers.regex("fo+"), ValueMatchers.regex("fo+"));
+    }
+}
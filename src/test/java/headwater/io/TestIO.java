@@ -1,5 +1,6 @@
 package headwater.io;
 
+import com.google.common.io.Files;
 import headwater.Utils;
 import headwater.bitmap.IBitmap;
 import headwater.bitmap.MemoryBitmap2;
@@ -10,7 +11,10 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(Parameterized.class)
@@ -35,6 +39,19 @@ public class TestIO {
         assertArraysEqual(value.toBytes(), readValue.toBytes());
     }
     
+    @Test
+    public void testPutWhatWasRead() throws Exception {
+        byte[] key = "testPutWhatWasRead".getBytes();
+        io.put(key, 3L, MemoryBitmap2.wrap(Utils.longToBytes(3L)));
+        
+        IBitmap value = io.get(key, 3L);
+        value.set(1, true);
+        io.put(key, 3L, value);
+        byte[] expected = Utils.longToBytes(3L);
+        expected[0] |= 2;
+        assertArraysEqual(expected, io.get(key, 3L).toBytes());
+    }
+    
     @Test
     public void testRowReadIteration() throws Exception {
         byte[] key = "testRowReadIteration".getBytes();
@@ -53,6 +70,38 @@ public class TestIO {
             
     }
     
+    @Test
+    public void testBulkGet() throws Exception {
+        if (!(io instanceof BulkIO))
+            return;
+        byte[] key = "testBulkGet".getBytes();
+        for (long col = 0; col < 10; col += 2)
+            io.put(key, col, MemoryBitmap2.wrap(Utils.longToBytes(col)));
+        
+        Map<Long, IBitmap> found = ((BulkIO<Long, IBitmap>)io).bulkGet(key, Arrays.asList(1L, 2L, 3L, 4L));
+        Assert.assertEquals(2, found.size());
+        assertArraysEqual(Utils.longToBytes(4L), found.get(4L).toBytes());
+        
+        // missing columns and rows stay missing.
+        Assert.assertEquals(2, ((BulkIO<Long, IBitmap>)io).bulkGet(key, Arrays.asList(1L, 2L, 3L, 4L)).size());
+        Assert.assertEquals(0, ((BulkIO<Long, IBitmap>)io).bulkGet("testBulkGetMissing".getBytes(), Arrays.asList(1L)).size());
+    }
+    
+    @Test
+    public void testRangeGet() throws Exception {
+        if (!(io instanceof BulkIO))
+            return;
+        byte[] key = "testRangeGet".getBytes();
+        for (long col = 0; col < 10; col += 2)
+            io.put(key, col, MemoryBitmap2.wrap(Utils.longToBytes(col)));
+        
+        SortedMap<Long, IBitmap> found = ((BulkIO<Long, IBitmap>)io).rangeGet(key, 3L, 2);
+        Assert.assertEquals(Arrays.asList(4L, 6L), new ArrayList<Long>(found.keySet()));
+        assertArraysEqual(Utils.longToBytes(6L), found.get(6L).toBytes());
+        Assert.assertEquals(1, ((BulkIO<Long, IBitmap>)io).rangeGet(key, 8L, 2).size());
+        Assert.assertEquals(0, ((BulkIO<Long, IBitmap>)io).rangeGet("testRangeGetMissing".getBytes(), 0L, 2).size());
+    }
+    
     private static void assertArraysEqual(byte[] expected, byte[] actual) {
         Assert.assertEquals(expected.length, actual.length);
         for (int i = 0; i < expected.length; i++)
@@ -63,6 +112,7 @@ public class TestIO {
     public static List<Object[]> getParameters() {
         return new ArrayList<Object[]>() {{
             add(new Object[]{new MemoryBitmapIO()});
+            add(new Object[]{new MappedBitmapIO(Files.createTempDir(), 8192)});
         }};
     }
 }
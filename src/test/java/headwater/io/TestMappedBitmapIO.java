@@ -0,0 +1,149 @@
+package headwater.io;
+
+import com.google.common.io.Files;
+import headwater.bitmap.IBitmap;
+import headwater.bitmap.MemoryBitmap2;
+import headwater.bitmap.RoaringBitmap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestMappedBitmapIO {
+    private File dir;
+
+    @Before
+    public void setup() {
+        dir = Files.createTempDir();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        byte[] key = "testReopen".getBytes();
+        MappedBitmapIO io = new MappedBitmapIO(dir, 8192);
+        for (long col = 0; col < 100; col++)
+            io.get(key, col).set(col, true);
+        io.close();
+
+        final List<Long> cols = new ArrayList<Long>();
+        MappedBitmapIO reopened = new MappedBitmapIO(dir, 8192);
+        reopened.visitAllColumns(key, 10, new ColumnObserver<Long, IBitmap>() {
+            public void observe(byte[] row, Long col, IBitmap value) {
+                cols.add(col);
+                Assert.assertArrayEquals(new long[]{col}, value.getAsserted());
+            }
+        });
+        Assert.assertEquals(100, cols.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testViewsWriteThrough() throws Exception {
+        byte[] key = "testViewsWriteThrough".getBytes();
+        MappedBitmapIO io = new MappedBitmapIO(dir, 8192);
+        io.get(key, 7L).set(42, true);
+        Assert.assertTrue(io.get(key, 7L).get(42));
+
+        // growing the file must not break views handed out earlier.
+        IBitmap early = io.get(key, 8L);
+        for (long col = 100; col < 1000; col++)
+            io.get(key, col);
+        early.set(3, true);
+        Assert.assertTrue(io.get(key, 8L).get(3));
+        io.close();
+    }
+
+    @Test
+    public void testPutResizeAndDelete() throws Exception {
+        byte[] key = "testPutResizeAndDelete".getBytes();
+        MappedBitmapIO io = new MappedBitmapIO(dir, 8192);
+
+        RoaringBitmap compressed = new RoaringBitmap(8192);
+        compressed.set(1, 8000);
+        io.put(key, 1L, compressed);
+        Assert.assertArrayEquals(new long[]{1, 8000}, io.get(key, 1L).getAsserted());
+
+        io.put(key, 1L, MemoryBitmap2.wrap(new byte[]{4}));
+        Assert.assertEquals(8, io.get(key, 1L).getBitLength());
+        Assert.assertArrayEquals(new long[]{2}, io.get(key, 1L).getAsserted());
+
+        io.put(key, 2L, MemoryBitmap2.wrap(new byte[]{1}));
+        io.del(key, 1L);
+        io.close();
+
+        final List<Long> cols = new ArrayList<Long>();
+        new MappedBitmapIO(dir, 8192).visitAllColumns(key, 10, new ColumnObserver<Long, IBitmap>() {
+            public void observe(byte[] row, Long col, IBitmap value) {
+                cols.add(col);
+            }
+        });
+        Assert.assertEquals(1, cols.size());
+        Assert.assertEquals(2L, cols.get(0).longValue());
+    }
+
+    @Test
+    public void testDeadSpaceIsReused() throws Exception {
+        byte[] key = "testDeadSpaceIsReused".getBytes();
+        MappedBitmapIO io = new MappedBitmapIO(dir, 8192);
+        io.get(key, 1L).set(5, true);
+        io.get(key, 2L).set(6, true);
+        File file = dir.listFiles()[0];
+        long length = file.length();
+        // 1024 bytes a record, so this would be far past the initial file without reuse.
+        for (int i = 0; i < 500; i++) {
+            io.del(key, 1L);
+            io.get(key, 1L).set(i, true);
+        }
+        Assert.assertEquals(length, file.length());
+        Assert.assertArrayEquals(new long[]{499}, io.get(key, 1L).getAsserted());
+        Assert.assertArrayEquals(new long[]{6}, io.get(key, 2L).getAsserted());
+        io.close();
+    }
+
+    @Test
+    public void testMostlyDeadRowsAreCompacted() throws Exception {
+        byte[] key = "testMostlyDeadRowsAreCompacted".getBytes();
+        MappedBitmapIO io = new MappedBitmapIO(dir, 8192);
+        // 60 records of 1036 bytes nearly fill the initial 64k file.
+        for (long col = 0; col < 60; col++)
+            io.get(key, col).set(col, true);
+        // shrinking leaves the big records dead, and nothing that size comes along to reuse them.
+        for (long col = 0; col < 59; col++)
+            io.put(key, col, MemoryBitmap2.wrap(new byte[]{(byte)(col + 1)}));
+        io.close();
+
+        // new segments are bigger, so they can't just take over the dead records.
+        io = new MappedBitmapIO(dir, 16384);
+        for (long col = 0; col < 59; col++)
+            Assert.assertArrayEquals(MemoryBitmap2.wrap(new byte[]{(byte)(col + 1)}).getAsserted(), io.get(key, col).getAsserted());
+        Assert.assertArrayEquals(new long[]{59}, io.get(key, 59L).getAsserted());
+        // the compacted copy replaced the row file.
+        Assert.assertEquals(1, dir.listFiles().length);
+        // new records go right after the compacted ones, so the file doesn't need to grow.
+        long length = dir.listFiles()[0].length();
+        for (long col = 60; col < 90; col++)
+            io.get(key, col);
+        Assert.assertEquals(length, dir.listFiles()[0].length());
+        io.close();
+    }
+
+    @Test
+    public void testRowsAreLocked() throws Exception {
+        byte[] key = "testRowsAreLocked".getBytes();
+        MappedBitmapIO io = new MappedBitmapIO(dir, 8192);
+        io.get(key, 1L).set(1, true);
+        MappedBitmapIO other = new MappedBitmapIO(dir, 8192);
+        try {
+            other.get(key, 1L);
+            Assert.fail("opened a row that was already open");
+        } catch (IOException expected) {
+        }
+        io.close();
+        Assert.assertTrue(other.get(key, 1L).get(1));
+        other.close();
+    }
+}
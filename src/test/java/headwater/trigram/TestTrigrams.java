@@ -7,10 +7,13 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.internal.util.reflection.Whitebox;
 
+import java.io.StringReader;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 public class TestTrigrams {
@@ -250,5 +253,139 @@ public class TestTrigrams {
         Assert.assertEquals(trigrams.size(), count);
     }
     // todo: need tests to make sure binary trigram create does indeed pad.
-}
 
+    @Test
+    public void testPackedCodes() {
+        long code = Trigram.pack('f', 0x10FFFF, 'o');
+        Assert.assertEquals('f', Trigram.codePoint(code, 0));
+        Assert.assertEquals(0x10FFFF, Trigram.codePoint(code, 1));
+        Assert.assertEquals('o', Trigram.codePoint(code, 2));
+        Assert.assertTrue(code > 0);
+        
+        Trigram foo = Trigram.make("foo").iterator().next();
+        Assert.assertEquals(Trigram.pack('f', 'o', 'o'), foo.toCode());
+        Assert.assertEquals(foo, Trigram.fromCode(foo.toCode()));
+        
+        // row keys from codes hash the same bytes as row keys from trigrams.
+        Assert.assertArrayEquals(Hashers.computeIndexRowKey("f", foo), Hashers.computeIndexRowKey("f", foo.toCode()));
+        
+        Trigram raw = Trigram.make(new byte[] {-127, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}).iterator().next();
+        Assert.assertEquals(-1, raw.toCode());
+    }
+    
+    @Test
+    public void testExtractor() {
+        TrigramExtractor extractor = new TrigramExtractor();
+        Assert.assertEquals(0, extractor.extract("fo"));
+        Assert.assertEquals(4, extractor.extract("abcabc"));
+        Assert.assertEquals(Trigram.pack('a', 'b', 'c'), extractor.getCodes()[0]);
+        Assert.assertEquals(Trigram.pack('c', 'a', 'b'), extractor.getCodes()[2]);
+        
+        Assert.assertEquals(3, extractor.extractDistinct("abcabc"));
+        Assert.assertEquals(Trigram.pack('a', 'b', 'c'), extractor.getCodes()[0]);
+        Assert.assertEquals(Trigram.pack('b', 'c', 'a'), extractor.getCodes()[1]);
+        Assert.assertEquals(Trigram.pack('c', 'a', 'b'), extractor.getCodes()[2]);
+        
+        // surrogate pairs are one code point.
+        String clefs = new String(new byte[]{-16, -99, -124, -94, -16, -99, -124, -94, -16, -99, -124, -94, 'x'}, Charsets.UTF_8);
+        Assert.assertEquals(2, extractor.extract(clefs));
+        Assert.assertEquals(0x1D122, Trigram.codePoint(extractor.getCodes()[1], 0));
+        Assert.assertEquals('x', Trigram.codePoint(extractor.getCodes()[1], 2));
+        
+        // order of first occurrence is kept when making trigrams.
+        List<Trigram> trigrams = (List<Trigram>)Trigram.make("abcabcx");
+        Assert.assertEquals(4, trigrams.size());
+        Assert.assertEquals("abc", trigrams.get(0).toString());
+        Assert.assertEquals("bcx", trigrams.get(3).toString());
+    }
+
+    @Test
+    public void testExtractorInputsAgree() throws Exception {
+        Random rand = new Random(8793245L);
+        StringBuilder sb = new StringBuilder();
+        // long enough to cross a few reader chunks. put a surrogate pair right across the first chunk boundary.
+        while (sb.length() < 20000) {
+            if (sb.length() == 8191)
+                sb.appendCodePoint(0x1D122);
+            int kind = rand.nextInt(10);
+            if (kind < 7)
+                sb.append((char)(' ' + rand.nextInt(95)));
+            else if (kind < 8)
+                sb.append((char)(0xa0 + rand.nextInt(0x60)));
+            else if (kind < 9)
+                sb.append('\u20ac');
+            else
+                sb.appendCodePoint(0x1F600 + rand.nextInt(50));
+        }
+        String value = sb.toString();
+        
+        TrigramExtractor expected = new TrigramExtractor();
+        int count = expected.extract(value);
+        Assert.assertEquals(value.codePointCount(0, value.length()) - 2, count);
+        
+        TrigramExtractor actual = new TrigramExtractor();
+        byte[] utf8 = value.getBytes(Charsets.UTF_8);
+        Assert.assertEquals(count, actual.extractUtf8(utf8, 0, utf8.length));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(expected.getCodes(), count), Arrays.copyOf(actual.getCodes(), count)));
+        
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+        direct.put(utf8).flip();
+        Assert.assertEquals(count, actual.extractUtf8(direct));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(expected.getCodes(), count), Arrays.copyOf(actual.getCodes(), count)));
+        Assert.assertEquals(0, direct.position());
+        
+        Assert.assertEquals(count, actual.extract(new StringReader(value)));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(expected.getCodes(), count), Arrays.copyOf(actual.getCodes(), count)));
+        
+        String latin = "caf\u00e9 cr\u00e8me";
+        byte[] latin1 = latin.getBytes(Charsets.ISO_8859_1);
+        count = expected.extract(latin);
+        Assert.assertEquals(count, actual.extractLatin1(latin1, 0, latin1.length));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(expected.getCodes(), count), Arrays.copyOf(actual.getCodes(), count)));
+    }
+    
+    @Test
+    public void testMalformedUtf8() {
+        TrigramExtractor extractor = new TrigramExtractor();
+        // a truncated euro sign in the middle.
+        Assert.assertEquals(3, extractor.extractUtf8(new byte[]{'a', (byte)0xe2, (byte)0x82, 'b', 'c'}, 0, 5));
+        Assert.assertEquals(Trigram.pack('a', 0xFFFD, 0xFFFD), extractor.getCodes()[0]);
+        Assert.assertEquals(Trigram.pack(0xFFFD, 'b', 'c'), extractor.getCodes()[2]);
+    }
+
+    @Test
+    public void testOtherGramLengths() {
+        TrigramExtractor bigrams = new TrigramExtractor(2);
+        Assert.assertEquals(3, bigrams.extract("abcd"));
+        Assert.assertEquals(NGrams.code("bc", 2), bigrams.getCodes()[1]);
+        
+        TrigramExtractor fourGrams = new TrigramExtractor(4);
+        Assert.assertEquals(2, fourGrams.extract("\uffffbcde"));
+        Assert.assertEquals(0xffff000000000000L | ((long)'b' << 32) | ('c' << 16) | 'd', fourGrams.getCodes()[0]);
+        Assert.assertEquals(NGrams.code("bcde", 4), fourGrams.getCodes()[1]);
+        
+        // supplementary code points are folded in 4-grams, but still count as one code point.
+        Assert.assertEquals(1, fourGrams.extract(new String(Character.toChars(0x1D122)) + "abc"));
+        Assert.assertEquals(NGrams.fold(0x1D122, 4), (int)(fourGrams.getCodes()[0] >>> 48));
+        
+        // trigram codes are the same no matter how they're made.
+        Assert.assertEquals(Trigram.pack('a', 'b', 'c'), NGrams.code("abc", 3));
+        
+        NGrams grams = new NGrams(4, 2, 3);
+        Assert.assertTrue(grams.has(2));
+        Assert.assertFalse(grams.has(1));
+        Assert.assertEquals(4, grams.longestUpTo(10));
+        Assert.assertEquals(2, grams.longestUpTo(2));
+        Assert.assertEquals(0, grams.longestUpTo(1));
+    }
+    
+    @Test
+    public void testGramRowKeys() {
+        // trigram keys are the same as always, other lengths get keys of their own.
+        Trigram abc = Trigram.make("abc").iterator().next();
+        Assert.assertArrayEquals(Hashers.computeIndexRowKey("f", abc), Hashers.computeIndexRowKey("f", 3, NGrams.code("abc", 3)));
+        Assert.assertFalse(Arrays.equals(
+                Hashers.computeIndexRowKey("f", 2, NGrams.code("ab", 2)),
+                Hashers.computeIndexRowKey("f", 4, NGrams.code("ab", 2))));
+    }
+}